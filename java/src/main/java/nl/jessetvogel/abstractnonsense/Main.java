@@ -8,9 +8,30 @@ public class Main {
     public static void main(String[] args) {
         // Read arguments
         boolean json = false;
+        int budget = 5, morphismLimit = 0;
+        boolean deepening = false, parallel = false;
+        long timeLimit = 0;
         for(String arg : args) {
+            if(arg.equals("--help")) {
+                printUsage();
+                return;
+            }
             if(arg.equals("--json"))
                 json = true;
+            if(arg.equals("--deepening"))
+                deepening = true;
+            if(arg.equals("--parallel"))
+                parallel = true;
+            try {
+                if(arg.startsWith("--budget="))
+                    budget = Integer.parseInt(arg.substring(9));
+                if(arg.startsWith("--time="))
+                    timeLimit = Long.parseLong(arg.substring(7));
+                if(arg.startsWith("--morphisms="))
+                    morphismLimit = Integer.parseInt(arg.substring(12));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid number in argument " + arg);
+            }
         }
 
         // Create session
@@ -22,8 +43,22 @@ public class Main {
             Parser parser = new Parser(System.in, System.out, session);
             if(json)
                 parser.setOutputFormat(Formatter.OutputFormat.JSON);
+            parser.setProofOptions(budget, deepening, timeLimit, morphismLimit);
+            parser.setParallelSearch(parallel);
             if (!parser.parse(session))
                 break;
         }
     }
+
+    private static void printUsage() {
+        System.out.println("Options:");
+        System.out.println("  --json             Output in JSON format");
+        System.out.println("  --budget=N         Budget of a proof (default 5)");
+        System.out.println("  --deepening        Prove with iterative deepening, up to the budget");
+        System.out.println("  --time=MS          Time limit of a proof in milliseconds (default none)");
+        System.out.println("  --morphisms=N      Limit on the number of morphisms created by a proof (default none)");
+        System.out.println("  --parallel         Search for examples concurrently. The results come in the same order as without,");
+        System.out.println("                     but the search only uses morphisms that exist when it starts, so it might find");
+        System.out.println("                     fewer or other examples than a search that may use morphisms it created itself");
+    }
 }
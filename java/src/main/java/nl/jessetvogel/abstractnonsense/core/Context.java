@@ -6,9 +6,63 @@ public class Context extends Diagram {
 
     public final List<Morphism> data;
 
+    // The owned indices are numbered 0, 1, 2, ... in the order they are added (numbers are never reused), so that a Mapping
+    // can store its values in an array. slots[index - base] is the number of the index, or -1 if it is not owned
+    private int[] slots;
+    private int base;
+    private int slotCount;
+
     public Context(Session session, Diagram parent, String name) {
         super(session, parent, name);
         data = new ArrayList<>();
+        slots = new int[0];
+        base = 0;
+        slotCount = 0;
+    }
+
+    int slot(int index) {
+        int i = index - base;
+        return (i >= 0 && i < slots.length) ? slots[i] : -1;
+    }
+
+    int slotCount() {
+        return slotCount;
+    }
+
+    @Override
+    public boolean owns(int index) {
+        return slot(index) != -1;
+    }
+
+    @Override
+    protected void addIndex(int index) {
+        super.addIndex(index);
+        if (slot(index) != -1)
+            return;
+
+        // Make sure the index fits in the table
+        if (slots.length == 0)
+            base = index;
+        if (index < base) {
+            int[] table = new int[slots.length + (base - index)];
+            Arrays.fill(table, -1);
+            System.arraycopy(slots, 0, table, base - index, slots.length);
+            slots = table;
+            base = index;
+        } else if (index - base >= slots.length) {
+            int length = slots.length;
+            slots = Arrays.copyOf(slots, Math.max(index - base + 1, 2 * length));
+            Arrays.fill(slots, length, slots.length, -1);
+        }
+        slots[index - base] = slotCount++;
+    }
+
+    @Override
+    protected void removeIndex(int index) {
+        super.removeIndex(index);
+        int i = index - base;
+        if (i >= 0 && i < slots.length)
+            slots[i] = -1;
     }
 
     public String signature() {
@@ -49,6 +103,6 @@ public class Context extends Diagram {
     @Override
     protected void replaceMorphism(Morphism f, Morphism g, List<MorphismPair> induced) throws CreationException {
         super.replaceMorphism(f, g, induced);
-        data.replaceAll(z -> (z.index == f.index ? new Morphism(g.index, z.k) : z));
+        data.replaceAll(z -> z.replace(f, g));
     }
 }
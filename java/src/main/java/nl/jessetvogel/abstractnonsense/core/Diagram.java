@@ -9,9 +9,12 @@ public class Diagram {
     private final List<Diagram> children;
     public final String name;
 
-    public final List<Integer> indices;
+    public final IndexSet indices;
     public final Map<Representation, Morphism> representations;
+    private final Map<Integer, List<Representation>> representationsByValue;
+    private final Map<Integer, Set<Representation>> representationsByData;
     final Map<String, Morphism> symbols;
+    private final SignatureIndex signatures;
     private final Rewriter rewriter;
 
     public Diagram(Session session, Diagram parent, String name) {
@@ -19,10 +22,13 @@ public class Diagram {
         this.parent = parent;
         this.name = name;
 
-        indices = new ArrayList<>();
+        indices = new IndexSet();
         symbols = new LinkedHashMap<>();
         representations = new LinkedHashMap<>();
-        rewriter = new Rewriter(this.session);
+        representationsByValue = new HashMap<>();
+        representationsByData = new HashMap<>();
+        signatures = new SignatureIndex();
+        rewriter = new Rewriter(this.session, hasParent() ? parent.rewriter : null);
 
         if (hasParent())
             parent.children.add(this);
@@ -60,17 +66,45 @@ public class Diagram {
 
     public List<Representation> getRepresentations(Morphism f) {
         List<Representation> reps = new ArrayList<>();
-        for (Map.Entry<Representation, Morphism> entry : representations.entrySet()) {
-            if (entry.getValue().equals(f))
-                reps.add(entry.getKey());
+        List<Representation> list = representationsByValue.get(f.index);
+        if (list != null) {
+            for (Representation rep : list) {
+                if (representations.get(rep).equals(f))
+                    reps.add(rep);
+            }
         }
         if (hasParent() && !owns(f))
             reps.addAll(parent.getRepresentations(f));
         return reps;
     }
 
+    private void putRepresentation(Representation rep, Morphism f) {
+        Morphism old = representations.put(rep, f);
+        if (old != null) {
+            // The key stays in place, only its value changes
+            representationsByValue.get(old.index).remove(rep);
+        } else {
+            for (Morphism x : rep.data)
+                representationsByData.computeIfAbsent(x.index, i -> new LinkedHashSet<>()).add(rep);
+        }
+        representationsByValue.computeIfAbsent(f.index, i -> new ArrayList<>()).add(rep);
+    }
+
+    private Morphism removeRepresentation(Representation rep) {
+        Morphism f = representations.remove(rep);
+        if (f == null)
+            return null;
+        representationsByValue.get(f.index).remove(rep);
+        for (Morphism x : rep.data) {
+            Set<Representation> set = representationsByData.get(x.index);
+            if (set != null)
+                set.remove(rep);
+        }
+        return f;
+    }
+
     public boolean owns(Morphism f) {
-        return indices.contains(f.index);
+        return owns(f.index);
     }
 
     public boolean owns(int index) {
@@ -90,7 +124,7 @@ public class Diagram {
         return parent.owner(list);
     }
 
-    boolean knows(Morphism x) {
+    public boolean knows(Morphism x) {
         if (owns(x))
             return true;
         if (hasParent())
@@ -98,6 +132,14 @@ public class Diagram {
         return false;
     }
 
+    void collectRepresentations(int index, List<Representation> list) {
+        // All representations in this diagram and its children that contain the given index, either as data or as value
+        list.addAll(representationsByValue.getOrDefault(index, Collections.emptyList()));
+        list.addAll(representationsByData.getOrDefault(index, Collections.emptySet()));
+        for (Diagram child : children)
+            child.collectRepresentations(index, list);
+    }
+
     protected void replaceMorphism(Morphism f, Morphism g, List<MorphismPair> induced) throws CreationException {
         // Replace in rewriter
         rewriter.replaceMorphism(f, g, induced);
@@ -106,34 +148,28 @@ public class Diagram {
         for (Map.Entry<String, Morphism> entry : symbols.entrySet()) {
             Morphism h = entry.getValue();
             if (h.index == f.index)
-                entry.setValue(new Morphism(g.index, h.k));
+                entry.setValue(h.replace(f, g));
         }
 
         // Replace representation pointers
-        for (Map.Entry<Representation, Morphism> entry : representations.entrySet()) {
-            Morphism h = entry.getValue();
-            if (h.index == f.index)
-                entry.setValue(new Morphism(g.index, h.k));
+        List<Representation> byValue = representationsByValue.remove(f.index);
+        if (byValue != null) {
+            for (Representation rep : byValue)
+                representations.put(rep, representations.get(rep).replace(f, g));
+            representationsByValue.computeIfAbsent(g.index, i -> new ArrayList<>()).addAll(byValue);
         }
 
         // If a representation contains f as data, recreate it
-        for (Map.Entry<Representation, Morphism> entry : new HashSet<>(representations.entrySet())) {
-            Representation rep = entry.getKey();
-
-            boolean flag = false; // TODO: Can this be shortened?
-            for (Morphism h : rep.data) {
-                if (h.index == f.index) {
-                    flag = true;
-                    break;
-                }
+        Set<Representation> byData = representationsByData.remove(f.index);
+        if (byData != null) {
+            for (Representation rep : new ArrayList<>(byData)) {
+                Morphism value = removeRepresentation(rep);
+                if (value == null)
+                    continue;
+                rep.data.replaceAll(h -> h.replace(f, g));
+                Morphism h = morphism(rep);
+                induced.add(new MorphismPair(value, h));
             }
-            if (!flag)
-                continue;
-
-            representations.remove(rep);
-            rep.data.replaceAll(h -> (h.index == f.index ? new Morphism(g.index, h.k) : h));
-            Morphism h = morphism(rep);
-            induced.add(new MorphismPair(entry.getValue(), h));
         }
 
         // Also make replacements in children
@@ -160,9 +196,48 @@ public class Diagram {
         }
     }
 
+    public Morphism lookup(Representation rep) throws CreationException {
+        // Same as morphism(rep), except that nothing is created: if the morphism does not exist yet, this returns null.
+        // This does not modify the diagram (or the representation), so it may be called from multiple threads at once
+        if (hasParent() && !ownsAny(rep.data))
+            return parent.lookup(rep);
+
+        switch (rep.type) {
+            case HOM: return lookupHom(rep);
+            case EQUALITY: return lookupEquality(rep);
+            case AND: return lookupAnd(rep);
+            case OR: return lookupOr(rep);
+            case COMPOSITION: return lookupComposition(rep);
+            case FUNCTOR_APPLICATION:
+            case PROPERTY_APPLICATION: return representations.get(rep);
+            default: return null;
+        }
+    }
+
     private Morphism createHom(Representation rep) throws CreationException {
         Morphism f = rep.data.get(0), g = rep.data.get(1);
 
+        // Trivial cases and lookup
+        Morphism existing = lookupHom(rep);
+        if (existing != null)
+            return existing;
+
+        // Create Hom-object
+        Morphism h = session.createObject(this, session.nCat(session.degree(f)));
+        putRepresentation(rep, h);
+
+        // If g equals False, we are talking about a negation: automatically identify ~~P with P
+        if (g.equals(session.False)) {
+            Representation repNegation = Representation.hom(h, session.False);
+            putRepresentation(repNegation, f);
+        }
+
+        return h;
+    }
+
+    private Morphism lookupHom(Representation rep) throws CreationException {
+        Morphism f = rep.data.get(0), g = rep.data.get(1);
+
         // Morphisms f and g must be comparable
         if (!session.comparable(f, g))
             throw new CreationException("Given morphisms are not comparable");
@@ -178,23 +253,22 @@ public class Diagram {
         }
 
         // Lookup representation
-        if (representations.containsKey(rep))
-            return representations.get(rep);
-
-        // Create Hom-object
-        Morphism h = session.createObject(this, session.nCat(session.degree(f)));
-        representations.put(rep, h);
+        return representations.get(rep);
+    }
 
-        // If g equals False, we are talking about a negation: automatically identify ~~P with P
-        if (g.equals(session.False)) {
-            Representation repNegation = Representation.hom(h, session.False);
-            representations.put(repNegation, f);
-        }
+    private Morphism createEquality(Representation rep) throws CreationException {
+        // Trivial cases and lookup
+        Morphism existing = lookupEquality(rep);
+        if (existing != null)
+            return existing;
 
-        return h;
+        // Create Proposition
+        Morphism P = session.createObject(this, session.Prop);
+        putRepresentation(rep, P);
+        return P;
     }
 
-    private Morphism createEquality(Representation rep) throws CreationException {
+    private Morphism lookupEquality(Representation rep) throws CreationException {
         Morphism f = rep.data.get(0), g = rep.data.get(1);
 
         // Morphisms f and g must be comparable
@@ -208,16 +282,29 @@ public class Diagram {
             return session.False;
 
         // Lookup representation
-        if (representations.containsKey(rep))
-            return representations.get(rep);
+        return representations.get(rep);
+    }
+
+    private Morphism createAnd(Representation rep) throws CreationException {
+        Morphism P = rep.data.get(0), Q = rep.data.get(1);
+
+        // Trivial cases and lookup
+        Morphism existing = lookupAnd(rep);
+        if (existing != null)
+            return existing;
 
         // Create Proposition
-        Morphism P = session.createObject(this, session.Prop);
-        representations.put(rep, P);
-        return P;
+        Morphism R = session.createObject(this, session.Prop);
+        putRepresentation(rep, R);
+
+        // Automatically put (P & Q) -> P and (P & Q) -> Q to True
+        putRepresentation(Representation.hom(R, P), session.True);
+        putRepresentation(Representation.hom(R, Q), session.True);
+
+        return R;
     }
 
-    private Morphism createAnd(Representation rep) throws CreationException {
+    private Morphism lookupAnd(Representation rep) throws CreationException {
         Morphism P = rep.data.get(0), Q = rep.data.get(1);
 
         // P and Q must be Propositions
@@ -235,21 +322,29 @@ public class Diagram {
             return P;
 
         // Lookup representation
-        if (representations.containsKey(rep))
-            return representations.get(rep);
+        return representations.get(rep);
+    }
+
+    private Morphism createOr(Representation rep) throws CreationException {
+        Morphism P = rep.data.get(0), Q = rep.data.get(1);
+
+        // Trivial cases and lookup
+        Morphism existing = lookupOr(rep);
+        if (existing != null)
+            return existing;
 
         // Create Proposition
         Morphism R = session.createObject(this, session.Prop);
-        representations.put(rep, R);
+        putRepresentation(rep, R);
 
-        // Automatically put (P & Q) -> P and (P & Q) -> Q to True
-        representations.put(Representation.hom(R, P), session.True);
-        representations.put(Representation.hom(R, Q), session.True);
+        // Automatically put P -> (P | Q) and Q -> (P | Q) to True
+        putRepresentation(Representation.hom(P, R), session.True);
+        putRepresentation(Representation.hom(Q, R), session.True);
 
         return R;
     }
 
-    private Morphism createOr(Representation rep) throws CreationException {
+    private Morphism lookupOr(Representation rep) throws CreationException {
         Morphism P = rep.data.get(0), Q = rep.data.get(1);
 
         // P and Q must be Propositions
@@ -267,18 +362,7 @@ public class Diagram {
             return P;
 
         // Lookup representation
-        if (representations.containsKey(rep))
-            return representations.get(rep);
-
-        // Create Proposition
-        Morphism R = session.createObject(this, session.Prop);
-        representations.put(rep, R);
-
-        // Automatically put P -> (P | Q) and Q -> (P | Q) to True
-        representations.put(Representation.hom(P, R), session.True);
-        representations.put(Representation.hom(Q, R), session.True);
-
-        return R;
+        return representations.get(rep);
     }
 
     private Morphism createComposition(Representation rep) throws CreationException {
@@ -305,19 +389,8 @@ public class Diagram {
         // Make a copy of the list, that will be used for the representation later on
         List<Morphism> copy = new ArrayList<>(list);
 
-        // Apply rewriter of this and its parents TODO: alternatively, link the plural rewriter!
-        boolean updates;
-        do {
-            updates = false;
-            Diagram diagram = this;
-            while (diagram != null) {
-                if (diagram.rewriter.rewrite(list)) {
-                    updates = true;
-                    break;
-                }
-                diagram = diagram.parent;
-            }
-        } while (updates);
+        // Apply rewriter of this diagram, which includes the rules of its parents
+        rewriter.rewrite(list);
 
         // If the list is empty now, then the result would have been id_x = id_y
         n = list.size();
@@ -326,7 +399,7 @@ public class Diagram {
 
         // If there is only one morphism left, just return that morphism
         if (n == 1) {
-            representations.put(Representation.composition(copy), list.get(0));
+            putRepresentation(Representation.composition(copy), list.get(0));
             return list.get(0);
         }
 
@@ -337,11 +410,37 @@ public class Diagram {
         // If there is still more than one morphism, this composition is not yet created.
         // So we create it now, and set the representation. Also, add a new rewrite rule.
         Morphism g = session.createMorphism(owner(list), x, y);
-        representations.put(rep, g);
+        putRepresentation(rep, g);
         rewriter.addRule(new ArrayList<>(list), new ArrayList<>(Collections.singleton(g)));
         return g;
     }
 
+    private Morphism lookupComposition(Representation rep) throws CreationException {
+        // Work on a copy, the representation should not be changed
+        List<Morphism> list = new ArrayList<>(rep.data);
+        if (list.isEmpty())
+            throw new CreationException("There must be at least one morphism");
+
+        int n = list.size();
+        Morphism x = session.dom(list.get(list.size() - 1));
+        for (int i = 0; i < n - 1; ++i) {
+            if (!session.dom(list.get(i)).equals(session.cod(list.get(i + 1))))
+                throw new CreationException("Given morphisms do not connect well");
+        }
+        list.removeIf(session::isIdentity);
+
+        // Apply rewriter of this diagram (which includes the rules of its parents), but without updating the rules
+        rewriter.reduce(list);
+
+        // Only if the composition reduces to a single morphism, it is known to exist
+        n = list.size();
+        if (n == 0)
+            return session.id(x);
+        if (n == 1)
+            return list.get(0);
+        return null;
+    }
+
     private Morphism createPropertyApplication(Representation rep) throws CreationException {
         Property property = rep.property;
         List<Morphism> data = rep.data;
@@ -358,7 +457,7 @@ public class Diagram {
         // Use property definition if exists, otherwise create proposition
 //        representations.put(rep, null); // This is so that this bucket comes before the property definition
         Morphism P = (property.definition != null) ? mapping.map(property.definition) : session.createObject(this, session.Prop);
-        representations.put(rep, P);
+        putRepresentation(rep, P);
         return P;
     }
 
@@ -378,6 +477,8 @@ public class Diagram {
 
             Morphism G = ry.data.get(0);
             Morphism g = ry.data.get(1);
+            if (g.equals(f)) // If f = G(f), this would go on forever
+                continue;
 
             Morphism FG = morphism(Representation.composition(new ArrayList<>(Arrays.asList(F, G))));
             return morphism(Representation.functorApplication(FG, g));
@@ -425,15 +526,28 @@ public class Diagram {
         if (g == null)
             throw new CreationException("Don't know about this kind of functor construction yet?");
 
-        representations.put(rep, g);
+        putRepresentation(rep, g);
         return g;
     }
 
+    public int[] getIndices(int cat, int k, int dom, int cod, int checkpoint) {
+        // Indices (up to the checkpoint) of the morphisms owned by this diagram with the given signature
+        return signatures.get(cat, k, dom, cod, checkpoint);
+    }
+
+    void addSignature(int index, int cat, int k, int dom, int cod) {
+        signatures.add(index, cat, k, dom, cod);
+    }
+
+    void removeSignature(int index, int cat, int k, int dom, int cod) {
+        signatures.remove(index, cat, k, dom, cod);
+    }
+
     protected void addIndex(int index) {
         indices.add(index);
     }
 
-    protected void removeIndex(Integer index) {
+    protected void removeIndex(int index) {
         indices.remove(index);
     }
 
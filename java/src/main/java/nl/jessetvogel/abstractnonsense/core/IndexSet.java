@@ -0,0 +1,168 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+public class IndexSet implements Iterable<Integer> {
+
+    // Indices are kept in insertion order in 'elements' (removed ones are overwritten by -1),
+    // and 'keys' and 'positions' form an open addressing hash table (linear probing) from index to position in 'elements'
+    private int[] elements;
+    private int length;
+    private int size;
+
+    private int[] keys;
+    private int[] positions;
+    private int mask;
+
+    public IndexSet() {
+        elements = new int[8];
+        length = 0;
+        size = 0;
+        keys = new int[16];
+        positions = new int[16];
+        Arrays.fill(keys, -1);
+        mask = keys.length - 1;
+    }
+
+    private int slot(int index) {
+        int h = index * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(int index) {
+        int i = slot(index);
+        while (keys[i] != -1) {
+            if (keys[i] == index)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(int index) {
+        return find(index) != -1;
+    }
+
+    public boolean add(int index) {
+        if (contains(index))
+            return false;
+
+        if (length == elements.length)
+            elements = Arrays.copyOf(elements, length * 2);
+        elements[length] = index;
+        insert(index, length);
+        length++;
+        size++;
+
+        // Keep the load factor of the table at most 1/2
+        if (2 * size > keys.length)
+            rehash(keys.length * 2);
+        return true;
+    }
+
+    private void insert(int index, int position) {
+        int i = slot(index);
+        while (keys[i] != -1)
+            i = (i + 1) & mask;
+        keys[i] = index;
+        positions[i] = position;
+    }
+
+    public boolean remove(int index) {
+        int i = find(index);
+        if (i == -1)
+            return false;
+
+        elements[positions[i]] = -1;
+        size--;
+
+        // Backward shift deletion, so that no tombstones are needed in the table
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == -1)
+                break;
+            int k = slot(keys[j]);
+            if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+                keys[i] = keys[j];
+                positions[i] = positions[j];
+                i = j;
+            }
+        }
+        keys[i] = -1;
+
+        // If there are many removed elements, compact the list of elements
+        if (2 * size < length && length > 8)
+            compact();
+        return true;
+    }
+
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < length; ++i) {
+            if (elements[i] != -1)
+                elements[n++] = elements[i];
+        }
+        length = n;
+        rehash(keys.length);
+    }
+
+    private void rehash(int capacity) {
+        keys = new int[capacity];
+        positions = new int[capacity];
+        Arrays.fill(keys, -1);
+        mask = capacity - 1;
+        for (int i = 0; i < length; ++i) {
+            if (elements[i] != -1)
+                insert(elements[i], i);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int[] toArray() {
+        int[] array = new int[size];
+        int n = 0;
+        for (int i = 0; i < length; ++i) {
+            if (elements[i] != -1)
+                array[n++] = elements[i];
+        }
+        return array;
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int i = skip(0);
+
+            private int skip(int i) {
+                while (i < length && elements[i] == -1)
+                    ++i;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return i < length;
+            }
+
+            @Override
+            public int nextInt() {
+                if (i >= length)
+                    throw new NoSuchElementException();
+                int index = elements[i];
+                i = skip(i + 1);
+                return index;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,102 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.*;
+
+public class LemmaCache {
+
+    // Results of earlier proofs, so that a later prove statement does not redo the same work.
+    // Proven propositions need not be stored, as they are identified with True. For propositions that could not be proven
+    // (from some diagram), the largest amount of money that was tried is stored. Such a failure is only known to hold as long as
+    // nothing is identified or created and no theorems are added, so all is forgotten whenever the version or the checkpoint of the session changes
+    private final Session session;
+    private final Map<Diagram, Map<Morphism, Integer>> failed;
+    private int version;
+    private int checkpoint;
+
+    // Theorem applications that did not prove anything: for a theorem and a partial mapping (searched up to some checkpoint),
+    // the implications that were found, which are the conditions that were not yet satisfied. Forgotten together with the failures
+    private final Map<ApplicationKey, List<Application>> applications;
+
+    LemmaCache(Session session) {
+        this.session = session;
+        failed = new HashMap<>();
+        applications = new HashMap<>();
+        version = session.getVersion();
+        checkpoint = session.checkpoint();
+    }
+
+    private void update() {
+        if (version != session.getVersion() || checkpoint != session.checkpoint()) {
+            failed.clear();
+            applications.clear();
+            version = session.getVersion();
+            checkpoint = session.checkpoint();
+        }
+    }
+
+    public boolean knownToFail(Diagram target, Morphism P, int money) {
+        update();
+        Map<Morphism, Integer> map = failed.get(target);
+        if (map == null)
+            return false;
+        Integer m = map.get(P);
+        return m != null && money <= m;
+    }
+
+    public void addFailure(Diagram target, Morphism P, int money) {
+        update();
+        failed.computeIfAbsent(target, d -> new HashMap<>()).merge(P, money, Math::max);
+    }
+
+    public List<Application> getApplications(Theorem thm, Mapping mapping, int checkpoint) {
+        // The outcome of applying the theorem with all extensions of the partial mapping, or null if not known
+        update();
+        return applications.get(new ApplicationKey(thm, mapping, checkpoint));
+    }
+
+    public void putApplications(Theorem thm, Mapping mapping, int checkpoint, List<Application> list) {
+        update();
+        applications.put(new ApplicationKey(thm, mapping, checkpoint), list);
+    }
+
+    public static class Application {
+
+        public final List<Morphism> conditions;
+        public final String message;
+
+        public Application(List<Morphism> conditions, String message) {
+            this.conditions = Collections.unmodifiableList(new ArrayList<>(conditions));
+            this.message = message;
+        }
+
+    }
+
+    private static class ApplicationKey {
+
+        private final Theorem theorem;
+        private final Diagram target;
+        private final int[] values;
+        private final int checkpoint;
+
+        ApplicationKey(Theorem theorem, Mapping mapping, int checkpoint) {
+            this.theorem = theorem;
+            this.target = mapping.target;
+            this.values = mapping.toArray();
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ApplicationKey))
+                return false;
+            ApplicationKey other = (ApplicationKey) o;
+            return theorem == other.theorem && target == other.target && checkpoint == other.checkpoint && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(theorem) * 31 + System.identityHashCode(target)) * 31 + Arrays.hashCode(values) + checkpoint;
+        }
+    }
+
+}
@@ -7,46 +7,59 @@ public class Mapping {
     protected final Session session;
     public final Context context;
     public final Diagram target;
-    protected final Map<Integer, Integer> mapping; // This is sufficient (and convenient) as we know that k-morphisms will be mapped to k-morphisms!
+
+    // For every owned index of the context, by its number (see Context.slot), the index it is mapped to, or -1.
+    // This is sufficient (and convenient) as we know that k-morphisms will be mapped to k-morphisms!
+    // Copies share the array until either of them writes to it (copy on write). This only saves the copy if neither side writes again:
+    // a Searcher keeps writing (backtracking) after it stores a result, so there every result still costs one copy of the array
+    private int[] values;
+    private boolean shared;
 
     public Mapping(Context context, Diagram target) {
         this.session = context.session;
         this.context = context;
         this.target = target;
-        mapping = new HashMap<>();
+        values = new int[context.slotCount()];
+        Arrays.fill(values, -1);
+        shared = false;
     }
 
     public Mapping(Mapping mapping) {
         this.session = mapping.session;
         this.context = mapping.context;
         this.target = mapping.target;
-        this.mapping = new HashMap<>(mapping.mapping);
+        values = mapping.values;
+        shared = mapping.shared = true;
     }
 
     public boolean set(Morphism f, Morphism g) {
+        return set(f.pack(), g.pack());
+    }
+
+    public boolean set(long f, long g) {
         // If already determined, not allowed to clash
-        if (determined(f))
-            return map(f).equals(g);
+        if (determined(Morphism.index(f)))
+            return map(f) == g;
 
         // k-morphisms must map to k-morphisms
-        if (f.k != g.k)
+        if (Morphism.k(f) != Morphism.k(g))
             return false;
 
         // Lift as long as f is an identity morphism
         while (session.isIdentity(f)) {
             if (!session.isIdentity(g)) // Identity morphisms must map to identity morphisms
                 return false;
-            f = new Morphism(f.index, f.k - 1);
-            g = new Morphism(g.index, g.k - 1);
+            f = Morphism.pack(Morphism.index(f), Morphism.k(f) - 1);
+            g = Morphism.pack(Morphism.index(g), Morphism.k(g) - 1);
         }
 
         // Put
-        put(f.index, g.index);
+        put(Morphism.index(f), Morphism.index(g));
 
         // Induced mapping for category, domain, codomain
         if (!set(session.cat(f), session.cat(g)))
             return false;
-        if (f.k > 0) {
+        if (Morphism.k(f) > 0) {
             if (!set(session.dom(f), session.dom(g)))
                 return false;
             if (!set(session.cod(f), session.cod(g)))
@@ -60,15 +73,44 @@ public class Mapping {
     }
 
     protected void put(int i, int j) {
-        mapping.put(i, j);
+        write(context.slot(i), j);
+    }
+
+    protected void remove(int i) {
+        write(context.slot(i), -1);
+    }
+
+    private void write(int slot, int value) {
+        if (slot == -1)
+            return;
+        if (shared || slot >= values.length) {
+            // The context might have gotten more indices since the array was created
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(length, context.slotCount()));
+            Arrays.fill(values, length, values.length, -1);
+            shared = false;
+        }
+        values[slot] = value;
+    }
+
+    private int get(int slot) {
+        return (slot < values.length) ? values[slot] : -1;
+    }
+
+    public int[] toArray() {
+        // For every owned index of the context (by its number), the index it is mapped to, or -1
+        int[] array = Arrays.copyOf(values, context.slotCount());
+        Arrays.fill(array, Math.min(values.length, array.length), array.length, -1);
+        return array;
     }
 
     public boolean determined(Morphism f) {
-        return mapping.containsKey(f.index) || !context.owns(f);
+        return determined(f.index);
     }
 
     public boolean determined(int index) {
-        return mapping.containsKey(index) || !context.owns(index);
+        int slot = context.slot(index);
+        return slot == -1 || get(slot) != -1;
     }
 
     public boolean determinedAll(List<Morphism> list) {
@@ -80,13 +122,25 @@ public class Mapping {
     }
 
     public Morphism map(Morphism x) {
-        if (!context.owns(x))
+        int slot = context.slot(x.index);
+        if (slot == -1)
             return x;
-        if (mapping.containsKey(x.index))
-            return new Morphism(mapping.get(x.index), x.k);
+        int y = get(slot);
+        if (y != -1)
+            return new Morphism(y, x.k);
         return null;
     }
 
+    public long map(long x) {
+        int slot = context.slot(Morphism.index(x));
+        if (slot == -1)
+            return x;
+        int y = get(slot);
+        if (y != -1)
+            return Morphism.pack(y, Morphism.k(x));
+        return Morphism.NONE;
+    }
+
     public List<Morphism> map(List<Morphism> list) {
         List<Morphism> mapped = new ArrayList<>();
         for (Morphism x : list)
@@ -2,14 +2,44 @@ package nl.jessetvogel.abstractnonsense.core;
 
 public class Morphism {
 
+    // On the hot paths, a morphism is passed around as a long (index in the high bits, k in the low bits), so that no objects are allocated
+    public static final long NONE = -1L;
+
     public final int index;
     public final int k;
-    public MorphismInfo info;
 
     public Morphism(int index, int k) {
         this.index = index;
         this.k = k;
-        info = null;
+    }
+
+    public static long pack(int index, int k) {
+        return ((long) index << 32) | (k & 0xFFFFFFFFL);
+    }
+
+    public static int index(long f) {
+        return (int) (f >>> 32);
+    }
+
+    public static int k(long f) {
+        return (int) f;
+    }
+
+    public static Morphism unpack(long f) {
+        return new Morphism(index(f), k(f));
+    }
+
+    public long pack() {
+        return pack(index, k);
+    }
+
+    public Morphism replace(Morphism f, Morphism g) {
+        // The result of replacing f by g in this morphism (its identities included)
+        if (index != f.index)
+            return this;
+        if (k == g.k)
+            return g;
+        return new Morphism(g.index, k);
     }
 
     @Override
@@ -0,0 +1,170 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.*;
+
+class PatternMatcher<T> {
+
+    // Aho--Corasick automaton for a set of patterns (words of morphisms), each with an item and a priority.
+    // Patterns can be added and removed at any time: the trie is extended or its outputs are updated,
+    // and the failure links are only recomputed (lazily) before the next search
+    private final List<Map<Long, Integer>> next;
+    private final List<List<Entry<T>>> outputs;
+    private int[] fail, dict;
+    private boolean dirty;
+
+    private final Map<T, Entry<T>> entries;
+    private int totalLength;
+
+    PatternMatcher() {
+        next = new ArrayList<>();
+        outputs = new ArrayList<>();
+        entries = new IdentityHashMap<>();
+        clear();
+    }
+
+    private void clear() {
+        next.clear();
+        outputs.clear();
+        newNode();
+        fail = new int[0];
+        dict = new int[0];
+        dirty = true;
+        totalLength = 0;
+    }
+
+    private int newNode() {
+        next.add(new HashMap<>());
+        outputs.add(new ArrayList<>());
+        return next.size() - 1;
+    }
+
+    void put(T item, List<Morphism> pattern, long priority) {
+        remove(item);
+
+        // Insert pattern in the trie
+        int node = 0;
+        for (Morphism x : pattern) {
+            Integer child = next.get(node).get(x.pack());
+            if (child == null) {
+                child = newNode();
+                next.get(node).put(x.pack(), child);
+            }
+            node = child;
+        }
+
+        Entry<T> entry = new Entry<>(item, new ArrayList<>(pattern), priority, node);
+        outputs.get(node).add(entry);
+        entries.put(item, entry);
+        totalLength += pattern.size();
+        dirty = true;
+    }
+
+    void remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry == null)
+            return;
+        outputs.get(entry.node).remove(entry);
+        totalLength -= entry.length;
+        dirty = true;
+
+        // If the trie consists mostly of removed patterns, build it again
+        if (next.size() > 2 * totalLength + 16) {
+            List<Entry<T>> list = new ArrayList<>(entries.values());
+            entries.clear();
+            clear();
+            list.sort(Comparator.comparingLong(e -> e.priority));
+            for (Entry<T> e : list)
+                put(e.item, e.pattern, e.priority);
+        }
+    }
+
+    boolean isReady() {
+        return !dirty;
+    }
+
+    void prepare() {
+        // Compute failure links (longest proper suffix in the trie) and dictionary links (longest proper suffix that is a pattern), breadth first
+        if (!dirty)
+            return;
+        int n = next.size();
+        fail = new int[n];
+        dict = new int[n];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : next.get(0).values()) {
+            fail[child] = 0;
+            dict[child] = -1;
+            queue.add(child);
+        }
+        dict[0] = -1;
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (Map.Entry<Long, Integer> edge : next.get(node).entrySet()) {
+                int child = edge.getValue();
+                int f = fail[node];
+                while (f != 0 && !next.get(f).containsKey(edge.getKey()))
+                    f = fail[f];
+                Integer g = next.get(f).get(edge.getKey());
+                fail[child] = (g != null && g != child) ? g : 0;
+                dict[child] = outputs.get(fail[child]).isEmpty() ? dict[fail[child]] : fail[child];
+                queue.add(child);
+            }
+        }
+        dirty = false;
+    }
+
+    Match<T> find(List<Morphism> word, T exclude) {
+        // Among all occurrences of all patterns in the word (except for the pattern of 'exclude'), the one with the lowest priority, and of those the leftmost.
+        // Does not modify anything, but prepare() must have been called after the last change
+        Entry<T> best = null;
+        int position = -1;
+        int node = 0;
+        for (int i = 0; i < word.size(); ++i) {
+            long x = word.get(i).pack();
+            Integer child;
+            while ((child = next.get(node).get(x)) == null && node != 0)
+                node = fail[node];
+            node = (child != null) ? child : 0;
+
+            for (int m = node; m != -1; m = dict[m]) {
+                for (Entry<T> entry : outputs.get(m)) {
+                    if (entry.item != exclude && (best == null || entry.priority < best.priority)) {
+                        best = entry;
+                        position = i - entry.length + 1;
+                    }
+                }
+            }
+        }
+        return (best == null) ? null : new Match<>(best.item, position);
+    }
+
+    static class Match<T> {
+
+        final T item;
+        final int position;
+
+        Match(T item, int position) {
+            this.item = item;
+            this.position = position;
+        }
+
+    }
+
+    private static class Entry<T> {
+
+        final T item;
+        final List<Morphism> pattern;
+        final int length;
+        final long priority;
+        final int node;
+
+        Entry(T item, List<Morphism> pattern, long priority, int node) {
+            this.item = item;
+            this.pattern = pattern;
+            this.length = pattern.size();
+            this.priority = priority;
+            this.node = node;
+        }
+
+    }
+
+}
@@ -0,0 +1,18 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.List;
+
+public class Replacement {
+
+    // Morphism with index 'from' was identified with (and replaced by) the morphism with index 'to'.
+    // The representations are those that contained 'from', either as data or as value, and now contain 'to' instead
+    public final int from, to;
+    public final List<Representation> representations;
+
+    Replacement(int from, int to, List<Representation> representations) {
+        this.from = from;
+        this.to = to;
+        this.representations = representations;
+    }
+
+}
@@ -5,38 +5,126 @@ import java.util.*;
 public class Rewriter {
 
     private final Session session;
+    private final Rewriter parent;
     private final List<Rule> rules;
 
+    // Automaton for the inputs of all (non-trivial) rules, with as priority the position of the rule in 'rules'
+    private final PatternMatcher<Rule> matcher;
+    private long ruleCounter;
+
+    // For every morphism index, where it occurs in the inputs and outputs of the rules.
+    // Used to find overlaps between rules, and to find the rules that can be reduced by a new rule
+    private final Map<Integer, List<Occurrence>> occurrences;
+
+    // Knuth--Bendix completion: rules of which the overlaps with the other rules are not yet computed,
+    // and critical pairs that are not yet resolved (shortest first). Pairs longer than KBLength wait until KBLength is raised
+    private final Deque<Rule> pending;
+    private final PriorityQueue<Pair> pairs;
+    private long pairCounter;
+
+    // The waiting critical pairs by the indices of the morphisms they contain, so that a replacement only visits the pairs that contain it.
+    // A replaced pair is taken over by a new pair, the old one stays in the queue as a dead pair until it is polled
+    private final Map<Integer, Set<Pair>> pairOccurrences;
+    private int deadPairs;
+
     private int KBLength;
 
-    public Rewriter(Session session) {
+    // The rules of a rewriter extend those of its parent (as a diagram extends its parent diagram). Every rewriter only keeps its own rules
+    // in its automaton, a word is rewritten by asking the automata of this rewriter and of its ancestors, ancestors' rules having lower priority.
+    // The version is increased whenever a rule changes
+    private int version;
+
+    // Normal forms of recently rewritten words, valid as long as the generation (the sum of the versions of this rewriter
+    // and its ancestors, which only increase) stays the same. Least recently used words are evicted first
+    private static final int CACHE_SIZE = 1024;
+    private final Map<List<Morphism>, List<Morphism>> normalForms;
+    private long cacheGeneration;
+
+    public Rewriter(Session session, Rewriter parent) {
         this.session = session;
+        this.parent = parent;
         rules = new ArrayList<>();
+        matcher = new PatternMatcher<>();
+        ruleCounter = 0;
+        occurrences = new HashMap<>();
+        pending = new ArrayDeque<>();
+        pairs = new PriorityQueue<>();
+        pairCounter = 0;
+        pairOccurrences = new HashMap<>();
+        deadPairs = 0;
         KBLength = 0;
+
+        version = 0;
+
+        normalForms = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Morphism>, List<Morphism>> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+        cacheGeneration = -1;
     }
 
     public void addRule(List<Morphism> input, List<Morphism> output) {
 //        System.out.println("Add rw-rule: " + session.str(input) + " --> " + session.str(output));
 
+        normalize(input, null);
+        normalize(output, null);
         Rule rule = new Rule(input, output);
-        rule.normalize();
-        rules.add(rule);
-        knuthBendix(Set.of(rule));
+        if (rule.isTrivial())
+            return;
+        add(rule);
+        complete();
     }
 
     public boolean rewrite(List<Morphism> word) {
-        // Update Knuth--Bendix length if necessary
-        if (word.size() > KBLength) {
-            KBLength = word.size();
-            knuthBendix(new HashSet<>(rules));
+        // Rewrite with the rules of this rewriter and all its ancestors.
+        // Update Knuth--Bendix length if necessary, only the critical pairs that were too long before need to be resolved now
+        for (Rewriter r = this; r != null; r = r.parent) {
+            if (word.size() > r.KBLength) {
+                r.KBLength = word.size();
+                r.complete();
+            }
+        }
+
+        long generation = 0;
+        for (Rewriter r = this; r != null; r = r.parent)
+            generation += r.version;
+        if (generation != cacheGeneration) {
+            normalForms.clear();
+            cacheGeneration = generation;
         }
 
-        // Apply rewriting rules
+        List<Morphism> normalForm = normalForms.get(word);
+        if (normalForm == null) {
+            List<Morphism> key = new ArrayList<>(word);
+            for (Rewriter r = this; r != null; r = r.parent)
+                r.matcher.prepare();
+            reduceLayers(word);
+            normalForms.put(key, new ArrayList<>(word));
+            return !word.equals(key);
+        }
+        if (normalForm.equals(word))
+            return false;
+        word.clear();
+        word.addAll(normalForm);
+        return true;
+    }
+
+    boolean reduce(List<Morphism> word) {
+        // Apply the rewriting rules of this rewriter and all its ancestors (without completing the rules first, so that this does not modify anything)
+        boolean ready = true;
+        for (Rewriter r = this; r != null; r = r.parent)
+            ready &= r.matcher.isReady();
+        if (ready)
+            return reduceLayers(word);
+
+        // If some automaton is not up to date, apply the rewriters one by one, starting again after every change
         boolean updates, change = false;
         do {
             updates = false;
-            for (Rule rule : rules) {
-                if (rule.apply(word)) {
+            for (Rewriter r = this; r != null; r = r.parent) {
+                if (r.reduceOwn(word)) {
                     change = updates = true;
                     break;
                 }
@@ -45,87 +133,301 @@ public class Rewriter {
         return change;
     }
 
-    private void knuthBendix(Set<Rule> rulesToCheck) {
-        Set<Rule> toCheck = new HashSet<>(rulesToCheck);
-        List<Rule> newRules = new ArrayList<>();
-        boolean updates;
+    private static boolean reduce(PatternMatcher<Rule> automaton, List<Morphism> word) {
+        // Every step applies the first rule that matches at its first occurrence, which the automaton finds in a single pass
+        boolean change = false;
+        PatternMatcher.Match<Rule> match;
+        while ((match = automaton.find(word, null)) != null) {
+            match.item.apply(word, match.position);
+            change = true;
+        }
+        return change;
+    }
+
+    private boolean reduceOwn(List<Morphism> word) {
+        // Apply only the rules of this rewriter
+        if (matcher.isReady())
+            return reduce(matcher, word);
+
+        // If the automaton is not up to date, try the rules one by one
+        boolean updates, change = false;
         do {
             updates = false;
-            newRules.clear();
-            for (Rule A : toCheck) {
-                for (Rule B : rules) {
-                    int nA = A.input.size(), nB = B.input.size();
-                    // Search for critical pairs
-                    for (int i = 1; i < nA + nB; ++i) {
-                        if (!B.input.subList(Math.max(0, nB - i), Math.min(nB, nB + nA - i))
-                                .equals(A.input.subList(Math.max(0, i - nB), Math.min(nA, i))))
-                            continue;
-
-                        List<Morphism> X = null, Y = null;
-                        if (i < nA && i < nB) { // Form: B (overlap) A
-                            X = new ArrayList<>(B.input.subList(0, nB - i));
-                            X.addAll(A.output); // Result after applying rule A
-                            Y = new ArrayList<>(B.output);
-                            Y.addAll(A.input.subList(i, nA)); // Result after applying rule B
-                        } else if (i > nA && i > nB) { // Form: A (overlap) B
-                            X = new ArrayList<>(A.output);
-                            X.addAll(B.input.subList(nB + nA - i, nB)); // Result after applying rule A
-                            Y = new ArrayList<>(A.input.subList(0, i - nB));
-                            Y.addAll(B.output); // Result after applying rule B
-                        } else if (i <= nA && i >= nB) { // Form: B contained in A
-                            X = new ArrayList<>(A.output); // Result after applying rule A
-                            Y = new ArrayList<>(A.input.subList(0, i - nB));
-                            Y.addAll(B.output);
-                            Y.addAll(A.input.subList(i, nA)); // Result after applying rule B
-                        } else if (i >= nA && i <= nB) { // Form: A contained in B
-                            X = new ArrayList<>(B.input.subList(0, nB - i)); // Result after applying rule A
-                            X.addAll(A.output);
-                            X.addAll(B.input.subList(nB + nA - i, nB));
-                            Y = new ArrayList<>(B.output); // Result after applying rule B
-                        }
-
-                        assert X != null;
-                        if (!X.equals(Y) && (X.size() <= KBLength && Y.size() <= KBLength)) {
-                            Rule rule = new Rule(X, Y);
-                            rule.normalize();
-                            if (!rule.isTrivial())
-                                newRules.add(rule);
-                        }
-                    }
+            for (Rule rule : rules) {
+                if (rule.apply(word)) {
+                    change = updates = true;
+                    break;
                 }
             }
+        } while (updates);
+        return change;
+    }
+
+    private boolean reduceLayers(List<Morphism> word) {
+        // Every step applies the first rule that matches at its first occurrence, where the rules of this rewriter come first, then those of its parent, etc.
+        // That is, the match with the lowest priority (depth << 48) | order. So the first automaton (from this rewriter up) that finds a match decides.
+        // The automata must all be prepared
+        boolean change = false;
+        PatternMatcher.Match<Rule> match;
+        while ((match = findLayers(word)) != null) {
+            match.item.apply(word, match.position);
+            change = true;
+        }
+        return change;
+    }
+
+    private PatternMatcher.Match<Rule> findLayers(List<Morphism> word) {
+        for (Rewriter r = this; r != null; r = r.parent) {
+            PatternMatcher.Match<Rule> match = r.matcher.find(word, null);
+            if (match != null)
+                return match;
+        }
+        return null;
+    }
+
+    private boolean normalize(List<Morphism> word, Rule exclude) {
+        // Reduce the word with all rules except the given one
+        matcher.prepare();
+        boolean change = false;
+        PatternMatcher.Match<Rule> match;
+        while ((match = matcher.find(word, exclude)) != null) {
+            match.item.apply(word, match.position);
+            change = true;
+        }
+        return change;
+    }
+
+    // -------- Knuth--Bendix completion --------
+
+    private void add(Rule rule) {
+        rules.add(rule);
+        index(rule);
+        schedule(rule);
+
+        // Other rules might be reducible by the new rule
+        interreduce(rule);
+        rules.removeIf(Rule::isTrivial);
+    }
+
+    private void schedule(Rule rule) {
+        if (!rule.pending) {
+            rule.pending = true;
+            pending.add(rule);
+        }
+    }
+
+    private void complete() {
+        while (true) {
+            // First compute the critical pairs of new or changed rules
+            Rule rule = pending.poll();
+            if (rule != null) {
+                rule.pending = false;
+                if (!rule.isTrivial())
+                    overlaps(rule);
+                continue;
+            }
 
-            // Determine toCheck for next iteration: all the new/changed rules
-            toCheck.clear();
-
-            // If there are new rules, add them to 'rules' and 'toCheck' and normalize
-            if (!newRules.isEmpty()) {
-                rules.addAll(newRules);
-                toCheck.addAll(newRules);
-                for (Rule rule : rules)
-                    if (rule.normalize())
-                        toCheck.add(rule);
-                rules.removeIf(Rule::isTrivial);
-                updates = true;
+            // Then resolve the critical pairs, shortest first
+            Pair pair = pairs.peek();
+            if (pair != null && pair.dead) {
+                pairs.poll();
+                deadPairs--;
+                continue;
             }
+            if (pair == null || pair.length > KBLength)
+                break;
+            pairs.poll();
+            forget(pair);
+            resolve(pair);
+        }
+    }
 
-        } while (updates);
+    private void resolve(Pair pair) {
+        // Both sides are equal, so if their normal forms differ, that gives a new rule
+        List<Morphism> X = new ArrayList<>(pair.X), Y = new ArrayList<>(pair.Y);
+        normalize(X, null);
+        normalize(Y, null);
+        if (X.equals(Y))
+            return;
+        Rule rule = new Rule(X, Y);
+        if (!rule.isTrivial())
+            add(rule);
     }
 
-    void replaceMorphism(Morphism f, Morphism g, List<MorphismPair> induced) throws CreationException {
-        Set<Rule> changedRules = new HashSet<>();
+    private void overlaps(Rule A) {
+        // Find all rules B whose input overlaps with the input of A (or contains it, or is contained in it), using the occurrence index.
+        // Place A at 'offset' relative to B: if offset >= 0, then A starts at position offset of B, otherwise B starts at position -offset of A
+        List<Morphism> a = A.input;
+        int nA = a.size();
+        for (Occurrence occ : occurrences(a.get(0))) {
+            if (occ.input && matches(occ.rule.input, occ.position, a, 0))
+                criticalPair(A, occ.rule, occ.position);
+        }
+        for (int j = 1; j < nA; ++j) {
+            for (Occurrence occ : occurrences(a.get(j))) {
+                if (occ.input && occ.position == 0 && matches(a, j, occ.rule.input, 0))
+                    criticalPair(A, occ.rule, -j);
+            }
+        }
+    }
+
+    private List<Occurrence> occurrences(Morphism x) {
+        // Copy, as resolving pairs may change the index
+        List<Occurrence> list = occurrences.get(x.index);
+        return (list == null) ? Collections.emptyList() : new ArrayList<>(list);
+    }
+
+    private boolean matches(List<Morphism> s, int i, List<Morphism> t, int j) {
+        // Whether s (from position i) and t (from position j) agree on their overlap
+        int n = Math.min(s.size() - i, t.size() - j);
+        for (int m = 0; m < n; ++m) {
+            if (!s.get(i + m).equals(t.get(j + m)))
+                return false;
+        }
+        return true;
+    }
 
-        // Replace morphisms in rules
-        for (Rule rule : rules)
-            if (rule.replace(f, g))
-                changedRules.add(rule);
+    private void criticalPair(Rule A, Rule B, int offset) {
+        if (A == B && offset == 0)
+            return;
+
+        // Superposition of the inputs of A and B, and the results of applying either rule to it
+        int sA = Math.max(offset, 0), sB = Math.max(-offset, 0);
+        int nA = A.input.size(), nB = B.input.size();
+        int n = Math.max(sA + nA, sB + nB);
+        List<Morphism> word = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i)
+            word.add((i >= sA && i < sA + nA) ? A.input.get(i - sA) : B.input.get(i - sB));
+
+        List<Morphism> X = new ArrayList<>(word.subList(0, sA));
+        X.addAll(A.output);
+        X.addAll(word.subList(sA + nA, n));
+        List<Morphism> Y = new ArrayList<>(word.subList(0, sB));
+        Y.addAll(B.output);
+        Y.addAll(word.subList(sB + nB, n));
+
+        // Normalize already, so that the pair is not deferred longer than needed
+        normalize(X, null);
+        normalize(Y, null);
+        if (!X.equals(Y))
+            addPair(new Pair(X, Y, pairCounter++));
+    }
+
+    private void addPair(Pair pair) {
+        pairs.add(pair);
+        for (int index : pair.indices())
+            pairOccurrences.computeIfAbsent(index, i -> new LinkedHashSet<>()).add(pair);
+    }
+
+    private void forget(Pair pair) {
+        // Remove the pair from the occurrence index
+        for (int index : pair.indices()) {
+            Set<Pair> set = pairOccurrences.get(index);
+            if (set == null)
+                continue;
+            set.remove(pair);
+            if (set.isEmpty())
+                pairOccurrences.remove(index);
+        }
+    }
+
+    private void interreduce(Rule rule) {
+        // Rules that contain the input of the given rule, in their input or output, can be reduced
+        List<Morphism> input = rule.input;
+        Set<Rule> affected = new LinkedHashSet<>();
+        for (Occurrence occ : occurrences(input.get(0))) {
+            List<Morphism> word = occ.input ? occ.rule.input : occ.rule.output;
+            if (occ.rule != rule && occ.position + input.size() <= word.size() && matches(word, occ.position, input, 0))
+                affected.add(occ.rule);
+        }
+
+        for (Rule other : affected)
+            renormalize(other);
+    }
+
+    private void renormalize(Rule rule) {
+        // Normalize the input and output of a rule with respect to the other rules, and re-orient it
+        boolean changedInput = normalize(rule.input, rule);
+        boolean changedOutput = normalize(rule.output, rule);
+        if (!changedInput && !changedOutput)
+            return;
+        rule.orient();
+        index(rule);
+
+        // The critical pairs of the rule change, and if the input changed, the rule might reduce other rules now
+        if (!rule.isTrivial()) {
+            schedule(rule);
+            if (changedInput)
+                interreduce(rule);
+        }
+    }
+
+    private void index(Rule rule) {
+        // Must be called whenever a rule (in 'rules') changes
+        for (Occurrence occ : rule.occurrences)
+            occurrences.get(occ.index).remove(occ);
+        rule.occurrences.clear();
+        version++;
+
+        if (rule.isTrivial()) {
+            matcher.remove(rule);
+            return;
+        }
+        matcher.put(rule, rule.input, rule.order);
+        for (int i = 0; i < rule.input.size(); ++i)
+            rule.occurrences.add(new Occurrence(rule, rule.input.get(i).index, true, i));
+        for (int i = 0; i < rule.output.size(); ++i)
+            rule.occurrences.add(new Occurrence(rule, rule.output.get(i).index, false, i));
+        for (Occurrence occ : rule.occurrences)
+            occurrences.computeIfAbsent(occ.index, i -> new ArrayList<>()).add(occ);
+    }
 
-        // Normalize rules & remove trivial rules
-        for (Rule rule : rules)
-            if (rule.normalize())
-                changedRules.add(rule);
+    void replaceMorphism(Morphism f, Morphism g, List<MorphismPair> induced) throws CreationException {
+        // Replace morphisms in the rules that contain f
+        Set<Rule> changedRules = new LinkedHashSet<>();
+        List<Occurrence> list = occurrences.get(f.index);
+        if (list != null) {
+            for (Occurrence occ : list)
+                changedRules.add(occ.rule);
+        }
+        for (Rule rule : changedRules) {
+            rule.replace(f, g);
+            index(rule);
+        }
+
+        // Normalize the changed rules, and the rules that they reduce now
+        for (Rule rule : changedRules) {
+            if (rule.isTrivial())
+                continue;
+            normalize(rule.input, rule);
+            normalize(rule.output, rule);
+            rule.orient();
+            index(rule);
+            if (!rule.isTrivial()) {
+                schedule(rule);
+                interreduce(rule);
+            }
+        }
         rules.removeIf(Rule::isTrivial);
 
+        // Also replace in the critical pairs that are waiting and contain f. As their length might change, they are replaced by new pairs
+        // with the same number (so that they keep their place among the pairs of the same length)
+        Set<Pair> waiting = pairOccurrences.remove(f.index);
+        if (waiting != null) {
+            for (Pair pair : waiting) {
+                forget(pair);
+                pair.dead = true;
+                deadPairs++;
+                Pair replaced = pair.replace(f, g);
+                if (!replaced.X.equals(replaced.Y))
+                    addPair(replaced);
+            }
+        }
+        if (2 * deadPairs > pairs.size() + 64) {
+            pairs.removeIf(pair -> pair.dead);
+            deadPairs = 0;
+        }
+
         // If any rule is now of the form 'x' -> 'y', then identify x with y
         for (Rule rule : rules) {
             if (rule.input.size() == 1 && rule.output.size() <= 1) {
@@ -136,7 +438,7 @@ public class Rewriter {
         }
 
         // End with Knuth--Bendix
-        knuthBendix(changedRules);
+        complete();
     }
 
     private class Rule {
@@ -144,10 +446,17 @@ public class Rewriter {
         private List<Morphism> input;
         private List<Morphism> output;
         private boolean trivial;
+        private final long order;
+
+        private boolean pending;
+        private final List<Occurrence> occurrences;
 
         Rule(List<Morphism> input, List<Morphism> output) {
             this.input = input;
             this.output = output;
+            order = ruleCounter++;
+            pending = false;
+            occurrences = new ArrayList<>();
             orient();
         }
 
@@ -159,31 +468,19 @@ public class Rewriter {
             if (i == -1)
                 return false;
 
+            apply(list, i);
+            return true;
+        }
+
+        void apply(List<Morphism> list, int i) {
             list.subList(i, i + input.size()).clear();
             list.addAll(i, output);
-            return true;
         }
 
         private boolean isTrivial() {
             return trivial;
         }
 
-        private boolean normalize() {
-            boolean change = false, updates;
-            do {
-                updates = false;
-                for (Rule rule : rules) {
-                    if (rule == this)
-                        continue;
-                    if (rule.apply(input) || rule.apply(output))
-                        updates = change = true;
-                }
-            } while (updates);
-            if (change)
-                orient();
-            return change;
-        }
-
         private void orient() {
             int d = shortLex(input, output);
             if (d < 0) {
@@ -196,22 +493,7 @@ public class Rewriter {
         }
 
         private boolean replace(Morphism f, Morphism g) {
-            boolean change = false;
-            for (ListIterator<Morphism> it = input.listIterator(); it.hasNext(); ) {
-                Morphism h = it.next();
-                if (h.index == f.index) {
-                    it.set(new Morphism(g.index, h.k));
-                    change = true;
-                }
-            }
-            for (ListIterator<Morphism> it = output.listIterator(); it.hasNext(); ) {
-                Morphism h = it.next();
-                if (h.index == f.index) {
-                    it.set(new Morphism(g.index, h.k));
-                    change = true;
-                }
-            }
-
+            boolean change = replaceAll(input, f, g) | replaceAll(output, f, g);
             if (change) {
                 input.removeIf(session::isIdentity);
                 output.removeIf(session::isIdentity);
@@ -220,18 +502,88 @@ public class Rewriter {
 
             return change;
         }
+    }
 
-        private int shortLex(List<Morphism> s, List<Morphism> t) {
-            int d = s.size() - t.size();
+    private static boolean replaceAll(List<Morphism> list, Morphism f, Morphism g) {
+        boolean change = false;
+        for (ListIterator<Morphism> it = list.listIterator(); it.hasNext(); ) {
+            Morphism h = it.next();
+            if (h.index == f.index) {
+                it.set(h.replace(f, g));
+                change = true;
+            }
+        }
+        return change;
+    }
+
+    private static int shortLex(List<Morphism> s, List<Morphism> t) {
+        int d = s.size() - t.size();
+        if (d != 0)
+            return d;
+        for (int i = 0; i < s.size(); ++i) {
+            d = s.get(i).index - t.get(i).index;
             if (d != 0)
                 return d;
-            for (int i = 0; i < s.size(); ++i) {
-                d = s.get(i).index - t.get(i).index;
-                if (d != 0)
-                    return d;
-            }
-            return 0;
         }
+        return 0;
+    }
+
+    private static class Occurrence {
+
+        final Rule rule;
+        final int index;
+        final boolean input;
+        final int position;
+
+        Occurrence(Rule rule, int index, boolean input, int position) {
+            this.rule = rule;
+            this.index = index;
+            this.input = input;
+            this.position = position;
+        }
+
+    }
+
+    private class Pair implements Comparable<Pair> {
+
+        final List<Morphism> X, Y;
+        final int length;
+        final long number;
+        boolean dead;
+
+        Pair(List<Morphism> X, List<Morphism> Y, long number) {
+            this.X = X;
+            this.Y = Y;
+            length = Math.max(X.size(), Y.size());
+            this.number = number;
+            dead = false;
+        }
+
+        Set<Integer> indices() {
+            Set<Integer> indices = new HashSet<>();
+            for (Morphism x : X)
+                indices.add(x.index);
+            for (Morphism y : Y)
+                indices.add(y.index);
+            return indices;
+        }
+
+        Pair replace(Morphism f, Morphism g) {
+            List<Morphism> X = new ArrayList<>(this.X), Y = new ArrayList<>(this.Y);
+            replaceAll(X, f, g);
+            replaceAll(Y, f, g);
+            X.removeIf(session::isIdentity);
+            Y.removeIf(session::isIdentity);
+            return new Pair(X, Y, number);
+        }
+
+        @Override
+        public int compareTo(Pair other) {
+            if (length != other.length)
+                return Integer.compare(length, other.length);
+            return Long.compare(number, other.number);
+        }
+
     }
 
 }
@@ -1,6 +1,7 @@
 package nl.jessetvogel.abstractnonsense.core;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 public class Session extends Diagram {
 
@@ -13,9 +14,31 @@ public class Session extends Diagram {
     private final Map<String, Theorem> theorems;
     private final Map<String, Diagram> examples;
 
-    private final Map<Integer, Diagram> owners;
-    private final Map<Integer, MorphismInfo> morphismInfo;
-    private final Map<Integer, Integer> identifications;
+    // Information about morphisms is stored in parallel arrays, indexed by the index of the morphism
+    private int[] infoCat, infoK, infoDom, infoCod;
+    private int[] nCatLevel;
+    private Diagram[] owners;
+    private int[][] dependents;
+    private int[] dependentsCount;
+    private final UnionFind identifications;
+
+    // Increased whenever something is identified or a theorem is added, so whenever the answer to a proof might change
+    private int version;
+    private final LemmaCache lemmas;
+    private final TheoremIndex conclusionIndex, conditionIndex;
+
+    // While a parallel search runs, other threads read the session and its diagrams without locks, so in the meantime nothing may be created
+    // or identified. This is checked wherever that happens, and a FrozenException is thrown before anything is changed
+    private volatile boolean frozen;
+
+    // Told about every replacement made by identify
+    private final List<Consumer<Replacement>> listeners;
+
+    // Identifications that still have to be made, see identify
+    private final Deque<MorphismPair> worklist;
+    private final Set<List<Long>> pending;
+    private boolean merging;
+    private int worklistPeak;
 
     public final List<Integer> nCat;
     public final Morphism True, False, Prop, Set, Cat;
@@ -27,10 +50,26 @@ public class Session extends Diagram {
         properties = new HashMap<>();
         theorems = new HashMap<>();
         examples = new HashMap<>();
-        owners = new HashMap<>();
-        morphismInfo = new HashMap<>();
-        identifications = new HashMap<>();
+        infoCat = new int[0];
+        infoK = new int[0];
+        infoDom = new int[0];
+        infoCod = new int[0];
+        nCatLevel = new int[0];
+        owners = new Diagram[0];
+        dependents = new int[0][];
+        dependentsCount = new int[0];
+        ensureCapacity(64);
+        identifications = new UnionFind();
         contradiction = false;
+        version = 0;
+        lemmas = new LemmaCache(this);
+        conclusionIndex = new TheoremIndex(this, false);
+        conditionIndex = new TheoremIndex(this, true);
+        listeners = new ArrayList<>();
+        worklist = new ArrayDeque<>();
+        pending = new HashSet<>();
+        merging = false;
+        worklistPeak = 0;
 
         // Create default morphisms
         nCat = new ArrayList<>();
@@ -65,16 +104,80 @@ public class Session extends Diagram {
 
     private Morphism newTopCat() {
         // C denotes the category of n-categories with n the currently highest <insert word here>
-        Morphism C = new Morphism(indexCounter++, 0);
-        owners.put(C.index, this);
+        Morphism C = new Morphism(newIndex(this), 0);
         addIndex(C.index);
+        nCatLevel[C.index] = nCat.size();
         nCat.add(C.index);
         if (indexTopCat != -1)
-            morphismInfo.put(indexTopCat, new MorphismInfo(C.index, 0, C.index, C.index));
+            setInfo(indexTopCat, C.index, 0, C.index, C.index);
         indexTopCat = C.index;
         return C;
     }
 
+    private int newIndex(Diagram owner) {
+        checkWritable();
+        int index = indexCounter++;
+        ensureCapacity(index + 1);
+        owners[index] = owner;
+        return index;
+    }
+
+    private void ensureCapacity(int capacity) {
+        int length = owners.length;
+        if (capacity <= length)
+            return;
+        capacity = Math.max(capacity, 2 * length);
+        infoCat = Arrays.copyOf(infoCat, capacity);
+        infoK = Arrays.copyOf(infoK, capacity);
+        infoDom = Arrays.copyOf(infoDom, capacity);
+        infoCod = Arrays.copyOf(infoCod, capacity);
+        nCatLevel = Arrays.copyOf(nCatLevel, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+        dependents = Arrays.copyOf(dependents, capacity);
+        dependentsCount = Arrays.copyOf(dependentsCount, capacity);
+        Arrays.fill(infoCat, length, capacity, -1);
+        Arrays.fill(nCatLevel, length, capacity, -1);
+    }
+
+    private void setInfo(int index, int cat, int k, int dom, int cod) {
+        infoCat[index] = cat;
+        infoK[index] = k;
+        infoDom[index] = dom;
+        infoCod[index] = cod;
+        owners[index].addSignature(index, cat, k, dom, cod);
+
+        // Keep track of which morphisms refer to which indices, so that identify only has to look at those
+        addDependent(cat, index);
+        if (dom != cat)
+            addDependent(dom, index);
+        if (cod != cat && cod != dom)
+            addDependent(cod, index);
+    }
+
+    private void addDependent(int index, int dependent) {
+        int[] list = dependents[index];
+        int n = dependentsCount[index];
+        if (list == null)
+            list = dependents[index] = new int[4];
+        else if (n == list.length)
+            list = dependents[index] = Arrays.copyOf(list, 2 * n);
+        list[n] = dependent;
+        dependentsCount[index] = n + 1;
+    }
+
+    private boolean exists(int index) {
+        return index >= 0 && index < indexCounter && owners[index] != null;
+    }
+
+    public void setFrozen(boolean frozen) {
+        this.frozen = frozen;
+    }
+
+    private void checkWritable() {
+        if (frozen)
+            throw new FrozenException();
+    }
+
     public int checkpoint() {
         return indexCounter;
     }
@@ -83,59 +186,74 @@ public class Session extends Diagram {
         return degree(x.index) - x.k;
     }
 
-    public int degree(Integer index) {
-        int m = nCat.indexOf(index);
+    public int degree(int index) {
+        int m = nCatLevel[index];
         if (m != -1)
             return m - 1;
-        MorphismInfo info = morphismInfo.get(index);
-        return degree(info.cat) - info.k - 1;
+        return degree(infoCat[index]) - infoK[index] - 1;
     }
 
-    private void morphismSetInfo(Morphism f) {
-        if (f.info != null)
-            return;
-        if (f.index == indexTopCat)
+    private void checkInfo(int index) {
+        if (index == indexTopCat)
             newTopCat();
-        f.info = morphismInfo.get(f.index);
-        if(f.info == null)
-            System.err.println("Cannot find morphism info for index " + f.index + "!");
+        else if (index < 0 || index >= indexCounter || infoCat[index] == -1)
+            System.err.println("Cannot find morphism info for index " + index + "!");
     }
 
     public Morphism cat(Morphism f) {
-        morphismSetInfo(f);
-        return new Morphism(f.info.cat, 0);
+        return Morphism.unpack(cat(f.pack()));
     }
 
     public Morphism dom(Morphism f) {
-        morphismSetInfo(f);
-        if (f.k == f.info.k)
-            return new Morphism(f.info.dom, f.k - 1);
-        else
-            return new Morphism(f.index, f.k - 1);
+        return Morphism.unpack(dom(f.pack()));
     }
 
     public Morphism cod(Morphism f) {
-        morphismSetInfo(f);
-        if (f.k == f.info.k)
-            return new Morphism(f.info.cod, f.k - 1);
-        else
-            return new Morphism(f.index, f.k - 1);
+        return Morphism.unpack(cod(f.pack()));
     }
 
     public Morphism id(Morphism f) throws CreationException {
-        morphismSetInfo(f);
-        int n = degree(f.info.cat);
-        if (f.k >= n)
-            throw new CreationException("Cannot create " + (f.k + 1) + "-morphisms in a " + n + "-category");
+        return Morphism.unpack(id(f.pack()));
+    }
 
-        return new Morphism(f.index, f.k + 1);
+    public long cat(long f) {
+        int index = Morphism.index(f);
+        checkInfo(index);
+        return Morphism.pack(infoCat[index], 0);
+    }
+
+    public long dom(long f) {
+        int index = Morphism.index(f), k = Morphism.k(f);
+        checkInfo(index);
+        if (k == infoK[index])
+            return Morphism.pack(infoDom[index], k - 1);
+        else
+            return Morphism.pack(index, k - 1);
+    }
+
+    public long cod(long f) {
+        int index = Morphism.index(f), k = Morphism.k(f);
+        checkInfo(index);
+        if (k == infoK[index])
+            return Morphism.pack(infoCod[index], k - 1);
+        else
+            return Morphism.pack(index, k - 1);
+    }
+
+    public long id(long f) throws CreationException {
+        int index = Morphism.index(f), k = Morphism.k(f);
+        checkInfo(index);
+        int n = degree(infoCat[index]);
+        if (k >= n)
+            throw new CreationException("Cannot create " + (k + 1) + "-morphisms in a " + n + "-category");
+
+        return Morphism.pack(index, k + 1);
     }
 
     public Morphism createObject(Diagram diagram, Morphism category) throws CreationException {
         // Allocate a new index for this morphism and set info
-        int index = indexCounter++;
-        morphismInfo.put(index, new MorphismInfo(category.index, 0, category.index, category.index));
-        owners.put(index, diagram);
+        int index = newIndex(diagram);
+        setInfo(index, category.index, 0, category.index, category.index);
         diagram.addIndex(index);
         return new Morphism(index, 0);
     }
@@ -153,9 +271,8 @@ public class Session extends Diagram {
             throw new CreationException("cannot create a " + k + "-morphism in a " + n + "-category");
 
         // If all is verified, allocate a new index for this morphism and set info
-        int index = indexCounter++;
-        morphismInfo.put(index, new MorphismInfo(category.index, k, domain.index, codomain.index));
-        owners.put(index, diagram);
+        int index = newIndex(diagram);
+        setInfo(index, category.index, k, domain.index, codomain.index);
         diagram.addIndex(index);
         return new Morphism(index, k);
     }
@@ -177,7 +294,19 @@ public class Session extends Diagram {
     }
 
     public void addTheorem(Theorem thm) {
-        theorems.put(thm.name, thm);
+        Theorem old = theorems.put(thm.name, thm);
+        if (old != null) {
+            conclusionIndex.remove(old);
+            conditionIndex.remove(old);
+        }
+        conclusionIndex.add(thm);
+        conditionIndex.add(thm);
+        version++;
+    }
+
+    void theoremChanged(Theorem thm) {
+        conclusionIndex.changed(thm);
+        conditionIndex.changed(thm);
     }
 
     public boolean hasTheorem(String name) {
@@ -204,6 +333,30 @@ public class Session extends Diagram {
         return examples.get(name);
     }
 
+    public int getVersion() {
+        return version;
+    }
+
+    public LemmaCache getLemmaCache() {
+        return lemmas;
+    }
+
+    public TheoremIndex getConclusionIndex() {
+        return conclusionIndex;
+    }
+
+    public TheoremIndex getConditionIndex() {
+        return conditionIndex;
+    }
+
+    public void addListener(Consumer<Replacement> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Replacement> listener) {
+        listeners.remove(listener);
+    }
+
     public Morphism nCat(int n) {
         int i = n + 2; // Mind the offset
         while (i >= nCat.size())
@@ -212,35 +365,93 @@ public class Session extends Diagram {
     }
 
     public boolean isIdentity(Morphism f) {
-        morphismSetInfo(f);
-        return f.k > f.info.k;
+        return isIdentity(f.pack());
+    }
+
+    public boolean isIdentity(long f) {
+        int index = Morphism.index(f);
+        checkInfo(index);
+        return Morphism.k(f) > infoK[index];
     }
 
     public boolean isCategory(Morphism C) {
-        return C.k == 0 && nCat.contains(cat(C).index);
+        return C.k == 0 && nCatLevel[Morphism.index(cat(C.pack()))] != -1;
     }
 
     public void identify(Morphism f, Morphism g) throws CreationException {
+        checkWritable();
+
+        // Identifications induce more identifications. Instead of handling those recursively, they are put on a worklist,
+        // which is processed by the outermost call only. So while identifying, this only adds (f, g) to the worklist
+        enqueue(Collections.singletonList(new MorphismPair(f, g)));
+        if (merging)
+            return;
+
+        merging = true;
+        try {
+            while (!worklist.isEmpty()) {
+                MorphismPair pair = worklist.pollFirst();
+                pending.remove(pairKey(pair.f, pair.g));
+                enqueue(merge(pair.f, pair.g));
+            }
+        } finally {
+            merging = false;
+            worklist.clear();
+            pending.clear();
+        }
+    }
+
+    private void enqueue(List<MorphismPair> pairs) {
+        // Pairs are put in front in reverse order, so that they are handled in the same order as they would be recursively.
+        // Pairs that are already identified, or that are already on the worklist, are skipped
+        for (int i = pairs.size() - 1; i >= 0; --i) {
+            MorphismPair pair = pairs.get(i);
+            Morphism f = new Morphism(identifications.find(pair.f.index), pair.f.k);
+            Morphism g = new Morphism(identifications.find(pair.g.index), pair.g.k);
+            if (f.equals(g) || !pending.add(pairKey(f, g)))
+                continue;
+            worklist.addFirst(new MorphismPair(f, g));
+        }
+        worklistPeak = Math.max(worklistPeak, worklist.size());
+    }
+
+    private static List<Long> pairKey(Morphism f, Morphism g) {
+        // The same for (f, g) and (g, f). Includes k, since f and g may also be identities of the objects at their index
+        long a = f.pack(), b = g.pack();
+        return (a < b) ? Arrays.asList(a, b) : Arrays.asList(b, a);
+    }
+
+    public Morphism resolve(Morphism f) {
+        // The morphism that f was identified with (f itself if it was not identified with anything)
+        return new Morphism(identifications.find(f.index), f.k);
+    }
+
+    public int getWorklistPeak() {
+        return worklistPeak;
+    }
+
+    private List<MorphismPair> merge(Morphism f, Morphism g) throws CreationException {
+        // Identifies f and g, and returns the identifications that are induced by this
         // First look up in the identification table
-        while(identifications.containsKey(f.index))
-            f = new Morphism(identifications.get(f.index), f.k);
-        while(identifications.containsKey(g.index))
-            g = new Morphism(identifications.get(g.index), g.k);
+        f = new Morphism(identifications.find(f.index), f.k);
+        g = new Morphism(identifications.find(g.index), g.k);
 
         // Detect contradictions
         if((f.equals(True) && g.equals(False)) || (f.equals(False) && g.equals(True))) {
             contradiction = true;
-            return;
+            return Collections.emptyList();
         }
 
         // If f and g are already equal, we are done
         if (f.equals(g))
-            return;
+            return Collections.emptyList();
 
         // f and g must be comparable
         if (!comparable(f, g))
             throw new CreationException("Incomparable morphisms");
 
+        version++;
+
         // We are going to replace f with g, so f must be the in the 'younger' diagram, and g in the 'older' diagram.
         // In other words, owner(f) must know g. If not, swap f and g
         Diagram df = owner(f), dg = owner(g);
@@ -251,21 +462,34 @@ public class Session extends Diagram {
             df = owner(f); // Update owner
         }
 
-        // Make changes in MorphismInfo
-        for (MorphismInfo info : morphismInfo.values()) {
-            if (info.cat == f.index) info.cat = g.index;
-            if (info.dom == f.index) info.dom = g.index;
-            if (info.cod == f.index) info.cod = g.index;
+        // Make changes in the morphism info, only the morphisms that refer to f need to be updated
+        int[] list = dependents[f.index];
+        for (int i = 0, n = dependentsCount[f.index]; i < n; ++i) {
+            int index = list[i];
+            if (!exists(index)) // This morphism was identified with something else already
+                continue;
+            Diagram owner = owners[index];
+            owner.removeSignature(index, infoCat[index], infoK[index], infoDom[index], infoCod[index]);
+            if (infoCat[index] == f.index) infoCat[index] = g.index;
+            if (infoDom[index] == f.index) infoDom[index] = g.index;
+            if (infoCod[index] == f.index) infoCod[index] = g.index;
+            owner.addSignature(index, infoCat[index], infoK[index], infoDom[index], infoCod[index]);
+            addDependent(g.index, index);
         }
+        dependents[f.index] = null;
+        dependentsCount[f.index] = 0;
 
         // Now we replace f with g (keeping track of induced identifications) starting from the Diagram that owns f (any Diagram below that won't know of f)
+        List<Representation> affected = new ArrayList<>();
+        if (!listeners.isEmpty())
+            df.collectRepresentations(f.index, affected);
         List<MorphismPair> inducedIdentifications = new ArrayList<>();
         df.replaceMorphism(f, g, inducedIdentifications);
 
         // Delete index from diagram and remove owner
         df.removeIndex(f.index);
-        owners.remove(f.index);
-        morphismInfo.remove(f.index);
+        df.removeSignature(f.index, infoCat[f.index], infoK[f.index], infoDom[f.index], infoCod[f.index]);
+        owners[f.index] = null;
 
         // If g is True, then there might be some more induced identifications
         if (g.equals(True) || g.equals(False)) {
@@ -310,45 +534,54 @@ public class Session extends Diagram {
         }
 
         // Set identifications
-        identifications.put(f.index, g.index);
+        identifications.union(f.index, g.index);
 
-        for (MorphismPair pair : inducedIdentifications)
-            identify(pair.f, pair.g);
+        if (!listeners.isEmpty()) {
+            Replacement replacement = new Replacement(f.index, g.index, affected);
+            for (Consumer<Replacement> listener : new ArrayList<>(listeners))
+                listener.accept(replacement);
+        }
+
+        return inducedIdentifications;
     }
 
     public boolean comparable(Morphism f, Morphism g) {
-        if (f.k != g.k)
+        return comparable(f.pack(), g.pack());
+    }
+
+    public boolean comparable(long f, long g) {
+        if (Morphism.k(f) != Morphism.k(g))
             return false;
-        if (!cat(f).equals(cat(g)))
+        if (cat(f) != cat(g))
             return false;
-        return f.k == 0 || (dom(f).equals(dom(g)) && cod(f).equals(cod(g)));
+        return Morphism.k(f) == 0 || (dom(f) == dom(g) && cod(f) == cod(g));
     }
 
     public Diagram owner(Morphism f) {
-        return owners.get(f.index);
+        return exists(f.index) ? owners[f.index] : null;
     }
 
     public Morphism morphismFromIndex(int index) {
-        MorphismInfo info = morphismInfo.get(index);
-        if (info == null)
+        if (!exists(index) || infoCat[index] == -1)
             return null;
 
-        Morphism f = new Morphism(index, info.k);
-        f.info = info;
-        return f;
+        return new Morphism(index, infoK[index]);
+    }
+
+    public boolean isMorphism(long f) {
+        // Whether f is an existing morphism (possibly an identity of a lower morphism)
+        int index = Morphism.index(f);
+        return exists(index) && infoCat[index] != -1 && infoK[index] <= Morphism.k(f);
     }
 
     public Morphism morphismFromIndex(int index, int k) {
-        MorphismInfo info = morphismInfo.get(index);
-        if (info == null)
+        if (!exists(index) || infoCat[index] == -1)
             return null;
 
-        if(info.k > k)
+        if(infoK[index] > k)
             return null;
 
-        Morphism f = new Morphism(index, k);
-        f.info = info;
-        return f;
+        return new Morphism(index, k);
     }
 
     // -------- Stringify --------
@@ -420,4 +653,14 @@ public class Session extends Diagram {
         return sj.toString();
     }
 
+    public static class FrozenException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        FrozenException() {
+            super("The session cannot be modified during a parallel search");
+        }
+
+    }
+
 }
@@ -0,0 +1,103 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class SignatureIndex {
+
+    // For every signature (cat, k, dom, cod), the indices of the morphisms with that signature, in increasing order
+    private final Map<Key, IndexList> map;
+
+    SignatureIndex() {
+        map = new HashMap<>();
+    }
+
+    void add(int index, int cat, int k, int dom, int cod) {
+        map.computeIfAbsent(new Key(cat, k, dom, cod), key -> new IndexList()).add(index);
+    }
+
+    void remove(int index, int cat, int k, int dom, int cod) {
+        Key key = new Key(cat, k, dom, cod);
+        IndexList list = map.get(key);
+        if (list == null)
+            return;
+        list.remove(index);
+        if (list.size == 0)
+            map.remove(key);
+    }
+
+    int[] get(int cat, int k, int dom, int cod, int checkpoint) {
+        IndexList list = map.get(new Key(cat, k, dom, cod));
+        if (list == null)
+            return new int[0];
+        // Only the morphisms up to the checkpoint
+        int n = (checkpoint == Integer.MAX_VALUE) ? list.size : list.search(checkpoint + 1);
+        return Arrays.copyOf(list.elements, n);
+    }
+
+    private static class Key {
+
+        private final int cat, k, dom, cod;
+
+        Key(int cat, int k, int dom, int cod) {
+            this.cat = cat;
+            this.k = k;
+            this.dom = dom;
+            this.cod = cod;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return cat == other.cat && k == other.k && dom == other.dom && cod == other.cod;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((cat * 31 + k) * 31 + dom) * 31 + cod;
+        }
+    }
+
+    private static class IndexList {
+
+        private int[] elements = new int[4];
+        private int size = 0;
+
+        private int search(int index) {
+            // Position of the first element that is at least index
+            int low = 0, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (elements[mid] < index)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        void add(int index) {
+            // Morphisms are almost always added in order of creation, so usually this just appends
+            int i = (size == 0 || elements[size - 1] < index) ? size : search(index);
+            if (i < size && elements[i] == index)
+                return;
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, 2 * size);
+            System.arraycopy(elements, i, elements, i + 1, size - i);
+            elements[i] = index;
+            size++;
+        }
+
+        void remove(int index) {
+            int i = search(index);
+            if (i == size || elements[i] != index)
+                return;
+            System.arraycopy(elements, i + 1, elements, i, size - i - 1);
+            size--;
+        }
+    }
+
+}
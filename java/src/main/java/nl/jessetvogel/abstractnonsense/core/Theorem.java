@@ -15,10 +15,12 @@ public class Theorem extends Context {
 
     public void addCondition(Morphism P) {
         conditions.add(P);
+        changed();
     }
 
     public void addConclusion(Morphism Q) {
         conclusions.add(Q);
+        changed();
     }
 
     public List<Morphism>  apply(Mapping mapping) {
@@ -55,11 +57,35 @@ public class Theorem extends Context {
         return conclusions;
     }
 
+    private void changed() {
+        // Whenever the conditions, conclusions or their representations (might) change, the theorem indices must be updated
+        session.theoremChanged(this);
+    }
+
+    private boolean concerns(Morphism f) {
+        return concerns(conditions, f) || concerns(conclusions, f);
+    }
+
+    private boolean concerns(List<Morphism> list, Morphism f) {
+        for (Morphism Q : list) {
+            if (Q.index == f.index)
+                return true;
+            for (Representation rep : getRepresentations(Q)) {
+                for (Morphism x : rep.data)
+                    if (x.index == f.index)
+                        return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     protected void replaceMorphism(Morphism f, Morphism g, List<MorphismPair> induced) throws CreationException {
+        if (concerns(f) || concerns(g))
+            changed();
         super.replaceMorphism(f, g, induced);
-        conditions.replaceAll(z -> (z.index == f.index ? new Morphism(g.index, z.k) : z));
-        conclusions.replaceAll(z -> (z.index == f.index ? new Morphism(g.index, z.k) : z));
+        conditions.replaceAll(z -> z.replace(f, g));
+        conclusions.replaceAll(z -> z.replace(f, g));
     }
 
     public List<Morphism> getConditions() {
@@ -0,0 +1,182 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.*;
+
+public class TheoremIndex {
+
+    // Index of the conclusions (or conditions) of all theorems of a session, by the shape of their representations: type, property and number of data.
+    // Every entry also knows which of its data are constant (not owned by the theorem), those must match exactly.
+    // Entries are numbered in the order in which the theorems and their conclusions are listed, and are always returned in that order.
+    // The session tells the index about new theorems, and theorems tell it when their conclusions change, so only those are indexed again
+    private final Session session;
+    private final boolean conditions;
+
+    private final Map<Theorem, List<Entry>> entries;
+    private final Set<Theorem> dirty;
+    private boolean reorder;
+
+    private final Map<Shape, List<Entry>> byShape;
+    private final Map<Morphism, List<Entry>> byConclusion; // Conclusions that are not owned by their theorem
+
+    TheoremIndex(Session session, boolean conditions) {
+        this.session = session;
+        this.conditions = conditions;
+        entries = new HashMap<>();
+        dirty = new HashSet<>();
+        reorder = false;
+        byShape = new HashMap<>();
+        byConclusion = new HashMap<>();
+    }
+
+    void add(Theorem thm) {
+        entries.put(thm, Collections.emptyList());
+        dirty.add(thm);
+        reorder = true;
+    }
+
+    void remove(Theorem thm) {
+        List<Entry> list = entries.remove(thm);
+        if (list != null)
+            removeEntries(list);
+        dirty.remove(thm);
+        reorder = true;
+    }
+
+    void changed(Theorem thm) {
+        if (entries.containsKey(thm))
+            dirty.add(thm);
+    }
+
+    public List<Entry> candidates(Representation repP, Morphism P) {
+        // All entries that might be mapped onto the representation repP of P, so either a conclusion that equals P,
+        // or a representation of a conclusion that has the same shape and the same constants
+        update();
+
+        List<Entry> direct = byConclusion.getOrDefault(P, Collections.emptyList());
+        List<Entry> list = byShape.getOrDefault(new Shape(repP), Collections.emptyList());
+        List<Entry> candidates = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < direct.size() || j < list.size()) {
+            if (j == list.size() || (i < direct.size() && direct.get(i).number < list.get(j).number)) {
+                candidates.add(direct.get(i++));
+                continue;
+            }
+            Entry entry = list.get(j++);
+            if (entry.matches(repP))
+                candidates.add(entry);
+        }
+        return candidates;
+    }
+
+    private void update() {
+        if (dirty.isEmpty() && !reorder)
+            return;
+
+        // Index the theorems that were added or changed again
+        for (Theorem thm : dirty) {
+            removeEntries(entries.get(thm));
+            List<Entry> list = new ArrayList<>();
+            for (Morphism Q : conditions ? thm.getConditions() : thm.getConclusions()) {
+                // If a conclusion Q does not belong to the theorem (context), it can only be used for P = Q
+                if (!conditions && !thm.owns(Q)) {
+                    list.add(new Entry(thm, Q, null));
+                    continue;
+                }
+                for (Representation repQ : thm.getRepresentations(Q))
+                    list.add(new Entry(thm, Q, repQ));
+            }
+            for (Entry entry : list) {
+                if (entry.repQ == null)
+                    byConclusion.computeIfAbsent(entry.Q, x -> new ArrayList<>()).add(entry);
+                else
+                    byShape.computeIfAbsent(new Shape(entry.repQ), x -> new ArrayList<>()).add(entry);
+            }
+            entries.put(thm, list);
+        }
+
+        // Number the entries in the order of the theorems (only needed if theorems were added or removed), then of their conclusions
+        if (reorder || !dirty.isEmpty()) {
+            int rank = 0;
+            for (Theorem thm : session.getTheorems()) {
+                List<Entry> list = entries.get(thm);
+                for (int i = 0; i < list.size(); ++i)
+                    list.get(i).number = ((long) rank << 32) | i;
+                ++rank;
+            }
+            Comparator<Entry> order = Comparator.comparingLong(entry -> entry.number);
+            for (List<Entry> list : byShape.values())
+                list.sort(order);
+            for (List<Entry> list : byConclusion.values())
+                list.sort(order);
+        }
+        dirty.clear();
+        reorder = false;
+    }
+
+    private void removeEntries(List<Entry> list) {
+        for (Entry entry : list) {
+            List<Entry> bucket = (entry.repQ == null) ? byConclusion.get(entry.Q) : byShape.get(new Shape(entry.repQ));
+            if (bucket != null)
+                bucket.remove(entry);
+        }
+    }
+
+    public static class Entry {
+
+        private long number;
+        public final Theorem theorem;
+        public final Morphism Q;
+        public final Representation repQ; // null if Q is a conclusion that is not owned by the theorem
+        private final int[] constants; // Positions of the data of repQ that are not owned by the theorem
+
+        private Entry(Theorem theorem, Morphism Q, Representation repQ) {
+            this.theorem = theorem;
+            this.Q = Q;
+            this.repQ = repQ;
+
+            int n = 0;
+            int[] positions = new int[(repQ != null) ? repQ.data.size() : 0];
+            for (int i = 0; i < positions.length; ++i) {
+                if (!theorem.owns(repQ.data.get(i)))
+                    positions[n++] = i;
+            }
+            constants = Arrays.copyOf(positions, n);
+        }
+
+        private boolean matches(Representation rep) {
+            for (int i : constants) {
+                if (!repQ.data.get(i).equals(rep.data.get(i)))
+                    return false;
+            }
+            return true;
+        }
+
+    }
+
+    private static class Shape {
+
+        private final Representation.Type type;
+        private final Property property;
+        private final int size;
+
+        Shape(Representation rep) {
+            type = rep.type;
+            property = rep.property;
+            size = rep.data.size();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape))
+                return false;
+            Shape other = (Shape) o;
+            return type == other.type && property == other.property && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return (type.hashCode() * 31 + System.identityHashCode(property)) * 31 + size;
+        }
+    }
+
+}
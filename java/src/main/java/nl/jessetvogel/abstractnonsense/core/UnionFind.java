@@ -0,0 +1,75 @@
+package nl.jessetvogel.abstractnonsense.core;
+
+import java.util.Arrays;
+
+class UnionFind {
+
+    // The representative (label) of a class is not necessarily its root: the root is chosen by rank,
+    // while the label is the index that survived the identification
+    private int[] parent;
+    private int[] rank;
+    private int[] label;
+    private int size;
+
+    UnionFind() {
+        parent = new int[16];
+        rank = new int[16];
+        label = new int[16];
+        size = 0;
+    }
+
+    private void ensure(int index) {
+        if (index < size)
+            return;
+        if (index >= parent.length) {
+            int capacity = Math.max(parent.length * 2, index + 1);
+            parent = Arrays.copyOf(parent, capacity);
+            rank = Arrays.copyOf(rank, capacity);
+            label = Arrays.copyOf(label, capacity);
+        }
+        for (int i = size; i <= index; ++i) {
+            parent[i] = i;
+            label[i] = i;
+        }
+        size = index + 1;
+    }
+
+    private int root(int index) {
+        ensure(index);
+        int r = index;
+        while (parent[r] != r)
+            r = parent[r];
+
+        // Path compression
+        while (parent[index] != r) {
+            int next = parent[index];
+            parent[index] = r;
+            index = next;
+        }
+        return r;
+    }
+
+    int find(int index) {
+        int r = root(index);
+        return label[r];
+    }
+
+    void union(int f, int g) {
+        // Merges the class of f into the class of g, the label of g's class survives
+        int rf = root(f), rg = root(g);
+        if (rf == rg)
+            return;
+
+        int survivor = label[rg];
+        if (rank[rf] > rank[rg]) {
+            int z = rf;
+            rf = rg;
+            rg = z;
+        } else if (rank[rf] == rank[rg]) {
+            rank[rg]++;
+        }
+        parent[rf] = rg;
+        label[rg] = survivor;
+    }
+
+}
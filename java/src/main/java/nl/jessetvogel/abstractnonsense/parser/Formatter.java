@@ -2,7 +2,6 @@ package nl.jessetvogel.abstractnonsense.parser;
 
 import nl.jessetvogel.abstractnonsense.core.*;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.StringJoiner;
@@ -57,6 +56,24 @@ public class Formatter {
         return null;
     }
 
+    public String messageSaturated(List<String> applications) {
+        if(format == OutputFormat.PLAIN) {
+            StringBuilder sb = new StringBuilder();
+            for(String line : applications)
+                sb.append('\n').append(line);
+            return String.format("\uD83D\uDD01 Applied %d theorems%s", applications.size(), sb.toString());
+        }
+
+        if(format == OutputFormat.JSON) {
+            StringJoiner sj = new StringJoiner(",", "[", "]");
+            for(String line : applications)
+                sj.add("\"" + escape(line) + "\"");
+            return String.format("{\"type\":\"saturation\",\"applications\":%s}", sj.toString());
+        }
+
+        return null;
+    }
+
     public String messageExamples(List<Mapping> examples) {
         if(format == OutputFormat.PLAIN) {
             if(examples.isEmpty())
@@ -148,6 +165,16 @@ public class Formatter {
         return null;
     }
 
+    public String messageWorklist(int peak) {
+        if(format == OutputFormat.PLAIN)
+            return String.format("Largest identification worklist: %d", peak);
+
+        if(format == OutputFormat.JSON)
+            return String.format("{\"type\":\"worklist\",\"peak\":%d}", peak);
+
+        return null;
+    }
+
     public String messageList(Collection<String> items) {
         if(format == OutputFormat.PLAIN) {
             StringJoiner sj = new StringJoiner(", ");
@@ -201,7 +228,7 @@ public class Formatter {
 
     private String formatDiagram(Diagram diagram) {
         StringJoiner sj = (format == OutputFormat.JSON) ? new StringJoiner(",", "{", "}") : new StringJoiner(", ");
-        for(int index : new ArrayList<>(diagram.indices)) {
+        for(int index : diagram.indices.toArray()) {
             if(session.nCat.contains(index))
                 continue;
             sj.add(formatMorphism(session.morphismFromIndex(index)));
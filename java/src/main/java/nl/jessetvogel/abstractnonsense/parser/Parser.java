@@ -3,6 +3,7 @@ package nl.jessetvogel.abstractnonsense.parser;
 import nl.jessetvogel.abstractnonsense.core.*;
 import nl.jessetvogel.abstractnonsense.prover.Exampler;
 import nl.jessetvogel.abstractnonsense.prover.Prover;
+import nl.jessetvogel.abstractnonsense.prover.Saturator;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -21,6 +22,13 @@ public class Parser {
 
     private final Formatter formatter;
 
+    // Default proof options, see parseProofOptions
+    private int proofBudget = 5;
+    private boolean proofDeepening = false;
+    private long proofTimeLimit = 0;
+    private int proofMorphismLimit = 0;
+    private boolean parallelSearch = false;
+
     private enum MorphismOperator {
         NONE(0), EQUALITY(1), HOM(2), AND(3), OR(4), COMPOSITION(5), NEGATION(6), FUNCTOR(7);
 
@@ -56,6 +64,17 @@ public class Parser {
         formatter.format = format;
     }
 
+    public void setProofOptions(int budget, boolean deepening, long timeLimit, int morphismLimit) {
+        proofBudget = budget;
+        proofDeepening = deepening;
+        proofTimeLimit = timeLimit;
+        proofMorphismLimit = morphismLimit;
+    }
+
+    public void setParallelSearch(boolean parallel) {
+        parallelSearch = parallel;
+    }
+
     // ---- Token methods ----
 
     private void nextToken() throws IOException, Lexer.LexerException {
@@ -124,12 +143,13 @@ public class Parser {
                 let LIST_OF_IDENTIFIERS : TYPE |
                 write IDENTIFIER := MORPHISM |
                 assume LIST_OF_MORPHISMS |
-                prove MORPHISM |
+                prove (with PROOF_OPTIONS :)? MORPHISM |
                 apply IDENTIFIER ( LIST_OF_MORPHISMS ) |
                 property LIST_OF_IDENTIFIERS { IMPLICITS GIVENS (def MORPHISM)? } |
                 theorem IDENTIFIER { IMPLICITS GIVENS CONDITIONS CONCLUSIONS } |
                 example IDENTIFIER { IMPLICITS GIVENS ASSUMPTIONS } |
-                search { IMPLICITS GIVENS ASSUMPTIONS }
+                search { IMPLICITS GIVENS ASSUMPTIONS } |
+                saturate NUMBER?
 
          */
 
@@ -158,6 +178,8 @@ public class Parser {
             Parser parser = new Parser(new FileInputStream(file), out, session);
             parser.setLocation(file.getAbsoluteFile().getParent() + File.separator, file.getName());
             parser.setOutputFormat(formatter.format);
+            parser.setProofOptions(proofBudget, proofDeepening, proofTimeLimit, proofMorphismLimit);
+            parser.setParallelSearch(parallelSearch);
             parser.parse(diagram);
             return;
         }
@@ -223,8 +245,14 @@ public class Parser {
                 return;
             }
 
+            if (found(Token.Type.IDENTIFIER, "worklist")) {
+                consume();
+                output(formatter.messageWorklist(session.getWorklistPeak()));
+                return;
+            }
+
             if (found(Token.Type.NUMBER)) {
-                int index = Integer.parseInt(consume().data);
+                int index = parseInt();
                 Morphism f = session.morphismFromIndex(index);
                 if (f == null)
                     throw new ParserException(tCheck, "No morphism with index " + index);
@@ -282,6 +310,7 @@ public class Parser {
 
             Prover prover = new Prover(session, diagram);
             prover.setCheckpoint(session.checkpoint()); // So that it won't use morphisms in its prove that are not created yet! This probably is not the best way to do things, but otherwise the number of morphisms will explode in some cases..
+            int budget = parseProofOptions(prover);
 
             while(true) {
                 Morphism P = parseMorphism(diagram);
@@ -290,7 +319,7 @@ public class Parser {
                     throw new ParserException(tProve, "Prove requires a Proposition");
                 }
 
-                boolean success = prover.prove(P, 5);
+                boolean success = prover.prove(P, budget);
                 output(formatter.messageProven(success, prover.getProof()));
 
                 if(!found(Token.Type.SEPARATOR, ","))
@@ -421,11 +450,31 @@ public class Parser {
             consume(Token.Type.SEPARATOR, "}");
 
             Exampler ex = new Exampler(session, context);
+            ex.setParallel(parallelSearch);
             output(formatter.messageExamples(ex.search(20))); // Magic number!
             context.detach();
             return;
         }
 
+        if (found(Token.Type.KEYWORD, "saturate")) {
+            Token tSaturate = consume();
+
+            if (diagram != session)
+                throw new ParserException(tSaturate, "Cannot saturate from within example");
+
+            int rounds = 10; // Magic number!
+            if (found(Token.Type.NUMBER))
+                rounds = parseInt();
+
+            // Apply all theorems to all examples, and to the session itself
+            List<Diagram> diagrams = new ArrayList<>(session.getExamples());
+            diagrams.add(session);
+            Saturator saturator = new Saturator(session);
+            saturator.saturate(diagrams, rounds);
+            output(formatter.messageSaturated(saturator.getLog()));
+            return;
+        }
+
         if (found(Token.Type.KEYWORD, "write")) {
             Token tWrite = consume();
             String name = consume(Token.Type.IDENTIFIER).data;
@@ -440,6 +489,51 @@ public class Parser {
         throw new ParserException(currentToken, "Unable to parse statement '" + currentToken.data + "'");
     }
 
+    private int parseProofOptions(Prover prover) throws ParserException, IOException, Lexer.LexerException {
+        /*  PROOF_OPTIONS =
+                PROOF_OPTION ( , PROOF_OPTION )*
+            PROOF_OPTION =
+                budget NUMBER | deepening | time NUMBER | morphisms NUMBER
+         */
+
+        int budget = proofBudget;
+        boolean deepening = proofDeepening;
+        long timeLimit = proofTimeLimit;
+        int morphismLimit = proofMorphismLimit;
+
+        if (found(Token.Type.KEYWORD, "with")) {
+            consume();
+            while (true) {
+                Token tOption = consume(Token.Type.IDENTIFIER);
+                switch (tOption.data) {
+                    case "budget":
+                        budget = parseInt();
+                        break;
+                    case "deepening":
+                        deepening = true;
+                        break;
+                    case "time":
+                        timeLimit = parseLong();
+                        break;
+                    case "morphisms":
+                        morphismLimit = parseInt();
+                        break;
+                    default:
+                        throw new ParserException(tOption, "Unknown proof option '" + tOption.data + "'");
+                }
+                if (!found(Token.Type.SEPARATOR, ","))
+                    break;
+                consume();
+            }
+            consume(Token.Type.SEPARATOR, ":");
+        }
+
+        prover.setDeepening(deepening);
+        prover.setTimeLimit(timeLimit);
+        prover.setMorphismLimit(morphismLimit);
+        return budget;
+    }
+
     private void parseImplicits(Diagram diagram) throws ParserException, IOException, Lexer.LexerException {
         /*  IMPLICITS =
                 use LIST_OF_IDENTIFIERS : TYPE ( , LIST_OF_IDENTIFIERS : TYPE )*
@@ -805,16 +899,34 @@ public class Parser {
         StringJoiner sj = new StringJoiner(",", "(", ")");
         consume(Token.Type.SEPARATOR, "(");
 
-        sj.add(String.valueOf(Integer.parseInt(consume(Token.Type.NUMBER).data)));
+        sj.add(String.valueOf(parseInt()));
         while (found(Token.Type.SEPARATOR, ",")) {
             consume();
-            sj.add(String.valueOf(Integer.parseInt(consume(Token.Type.NUMBER).data)));
+            sj.add(String.valueOf(parseInt()));
         }
 
         consume(Token.Type.SEPARATOR, ")");
         return sj.toString();
     }
 
+    private int parseInt() throws ParserException, IOException, Lexer.LexerException {
+        Token tNumber = consume(Token.Type.NUMBER);
+        try {
+            return Integer.parseInt(tNumber.data);
+        } catch (NumberFormatException e) {
+            throw new ParserException(tNumber, "Number too large");
+        }
+    }
+
+    private long parseLong() throws ParserException, IOException, Lexer.LexerException {
+        Token tNumber = consume(Token.Type.NUMBER);
+        try {
+            return Long.parseLong(tNumber.data);
+        } catch (NumberFormatException e) {
+            throw new ParserException(tNumber, "Number too large");
+        }
+    }
+
     private void output(String message) {
         try {
             out.write(message.getBytes(StandardCharsets.UTF_8));
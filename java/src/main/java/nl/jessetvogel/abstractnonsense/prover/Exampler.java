@@ -9,16 +9,36 @@ public class Exampler {
     final Session session;
     final Context context;
 
+    // In parallel mode, the searches only consider the morphisms that exist when the search starts, and they never create any
+    // (see Searcher.split). So the results might differ from a sequential search, which may use morphisms it created itself
+    private boolean parallel;
+
     public Exampler(Session session, Context context) {
         this.session = session;
         this.context = context;
+        parallel = false;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
     }
 
     public List<Mapping> search(int max) {
         List<Mapping> mappings = new ArrayList<>();
 
-        Set<Diagram> diagrams = new HashSet<>(session.getExamples());
+        // Examples first, then the session itself
+        List<Diagram> diagrams = new ArrayList<>(session.getExamples());
         diagrams.add(session);
+
+        if (parallel) {
+            // Split all searches into branches first, and then search all branches (of all diagrams) concurrently
+            ParallelSearch search = new ParallelSearch(session);
+            for (Diagram diagram : diagrams)
+                search.add(new Searcher(context, diagram));
+            search.search(mappings, max);
+            return mappings;
+        }
+
         for (Diagram diagram : diagrams) {
             // Search
             Searcher searcher = new Searcher(context, diagram);
@@ -0,0 +1,96 @@
+package nl.jessetvogel.abstractnonsense.prover;
+
+import nl.jessetvogel.abstractnonsense.core.Mapping;
+import nl.jessetvogel.abstractnonsense.core.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+class ParallelSearch {
+
+    private final Session session;
+
+    // Branches of one or more searches, in the order in which a sequential search would visit them
+    private final List<Searcher> branches;
+
+    private List<List<Mapping>> results;
+    private boolean[] done, incomplete;
+    private int limit;
+
+    // Branches from this one on are not needed anymore, as the branches before already found enough mappings
+    private volatile int cutoff;
+
+    ParallelSearch(Session session) {
+        this.session = session;
+        branches = new ArrayList<>();
+    }
+
+    void add(Searcher searcher) {
+        // Note that splitting may still create morphisms, so this must not happen while searching
+        branches.addAll(searcher.split());
+    }
+
+    void search(List<Mapping> mappings, int limit) {
+        int n = branches.size();
+        this.limit = limit - mappings.size();
+        results = new ArrayList<>();
+        for (int i = 0; i < n; ++i)
+            results.add(new ArrayList<>());
+        done = new boolean[n];
+        incomplete = new boolean[n];
+        cutoff = n;
+
+        // Search all branches concurrently. As long as this happens, nothing in the session may be modified (the session checks this)
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            int branch = i;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                if (branch >= cutoff)
+                    return;
+                boolean complete = branches.get(branch).findBranch(this, branch, results.get(branch), this.limit);
+                finish(branch, complete);
+            }));
+        }
+        session.setFrozen(true);
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } finally {
+            session.setFrozen(false);
+        }
+
+        // Collect the results in order.
+        // Branches that could not be completed without creating morphisms are searched again, sequentially
+        for (int i = 0; i < n && mappings.size() < limit; ++i) {
+            if (incomplete[i]) {
+                branches.get(i).findSequential(mappings, limit);
+                continue;
+            }
+            for (Mapping m : results.get(i)) {
+                if (mappings.size() >= limit)
+                    break;
+                mappings.add(m);
+            }
+        }
+    }
+
+    boolean cutoff(int branch) {
+        return cutoff <= branch;
+    }
+
+    private synchronized void finish(int branch, boolean complete) {
+        done[branch] = true;
+        incomplete[branch] = !complete;
+
+        // Count the mappings found by the first branches, as long as they are done
+        int count = 0;
+        for (int j = 0; j < done.length && done[j] && !incomplete[j]; ++j) {
+            count += results.get(j).size();
+            if (count >= limit) {
+                cutoff = Math.min(cutoff, j + 1);
+                break;
+            }
+        }
+    }
+
+}
@@ -11,17 +11,25 @@ public class Prover extends Diagram {
 
     private final List<String> proof;
     private final Map<Morphism, Goal> goals;
-    private final Queue<Goal> queue;
+    private final Agenda queue;
     private final List<Implication> implications;
     private int checkpoint = Integer.MAX_VALUE;
 
+    // Limits on a proof: with iterative deepening, the proof is first attempted with money 1, then 2, etc.
+    // The time limit (in milliseconds) and the limit on the number of created morphisms are ignored when 0
+    private boolean deepening = false;
+    private long timeLimit = 0;
+    private int morphismLimit = 0;
+    private long deadline;
+    private long morphismCap;
+
     public Prover(Session session, Diagram target) {
         super(session, target, "prover");
         this.target = target;
 
         proof = new ArrayList<>();
         goals = new HashMap<>();
-        queue = new LinkedList<>();
+        queue = new Agenda();
         implications = new ArrayList<>();
     }
 
@@ -32,13 +40,41 @@ public class Prover extends Diagram {
 
         // Prepare for a new proof
         proof.clear();
+        deadline = (timeLimit > 0) ? System.currentTimeMillis() + timeLimit : Long.MAX_VALUE;
+        morphismCap = (morphismLimit > 0) ? (long) session.checkpoint() + morphismLimit : Long.MAX_VALUE;
+
+        // If an earlier proof of P (with at least this much money) failed, and nothing changed since, it will fail again
+        LemmaCache lemmas = session.getLemmaCache();
+        if (lemmas.knownToFail(target, P, money))
+            return false;
+
+        Morphism Q = P;
+        boolean success = false;
+        if (!deepening)
+            success = search(P, money).isProven();
+        else {
+            // Goals and implications that were found with less money are kept, so every round continues where the previous one stopped
+            for (int m = 1; m <= money && !success && !limitReached(); ++m) {
+                Goal ultimateGoal = search(Q, m);
+                success = ultimateGoal.isProven();
+                Q = ultimateGoal.P;
+            }
+        }
+
+        // Only remember the failure if it was not because of the limits
+        if (!success && !limitReached())
+            lemmas.addFailure(target, P, money);
+        return success;
+    }
+
+    private Goal search(Morphism P, int money) {
         queue.clear();
 
         // Create goal for P
         Goal ultimateGoal = updateQueue(P, money);
 
-        // As long as the final goal is not proven, and the queue is non-empty, try to prove goals
-        while (!ultimateGoal.isProven() && !queue.isEmpty()) {
+        // As long as the final goal is not proven, and the queue is non-empty, try to prove goals (unless a limit is reached)
+        while (!ultimateGoal.isProven() && !queue.isEmpty() && !limitReached()) {
             Goal goal = queue.poll();
 
             // We do not consider proven or unnecessary goals
@@ -49,7 +85,11 @@ public class Prover extends Diagram {
             considerGoal(goal);
         }
 
-        return ultimateGoal.isProven();
+        return ultimateGoal;
+    }
+
+    private boolean limitReached() {
+        return session.checkpoint() > morphismCap || System.currentTimeMillis() > deadline;
     }
 
     public List<String> getProof() {
@@ -60,6 +100,18 @@ public class Prover extends Diagram {
         this.checkpoint = checkpoint;
     }
 
+    public void setDeepening(boolean deepening) {
+        this.deepening = deepening;
+    }
+
+    public void setTimeLimit(long timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    public void setMorphismLimit(int morphismLimit) {
+        this.morphismLimit = morphismLimit;
+    }
+
     private void considerGoal(Goal goal) {
         // System.err.println("Consider the goal " + session.str(goal.P) + " ($" + goal.money + ")");
 
@@ -104,29 +156,22 @@ public class Prover extends Diagram {
             if (repP.type == Representation.Type.HOM && considerImplies(goal, repP))
                 return;
 
-            // Find applicable theorems
-            for (Theorem thm : session.getTheorems()) {
-                for (Morphism Q : thm.getConclusions()) {
-                    // If Q == P already, then the theorem satisfies
-                    if (Q.equals(goal.P)) {
-                        Mapping mapping = new Mapping(thm, target);
-                        if (considerTheoremPartialMapping(goal, thm, mapping))
-                            return;
-                        continue;
-                    }
-
-                    // If Q does not belong to the theorem (context), then no (Q should equal P already)
-                    if (!thm.owns(Q))
-                        continue;
+            // Find applicable theorems, only those with a conclusion that can possibly match
+            for (TheoremIndex.Entry entry : session.getConclusionIndex().candidates(repP, goal.P)) {
+                Theorem thm = entry.theorem;
 
-                    // Is there a representation of Q that induces P?
-                    List<Representation> repsQ = thm.getRepresentations(Q);
-                    for (Representation repQ : repsQ) {
-                        Mapping mapping = mappingFromRepresentations(thm, repQ, repP);
-                        if (mapping != null && considerTheoremPartialMapping(goal, thm, mapping))
-                            return;
-                    }
+                // If Q == P already, then the theorem satisfies
+                if (entry.repQ == null) {
+                    Mapping mapping = new Mapping(thm, target);
+                    if (considerTheoremPartialMapping(goal, thm, mapping))
+                        return;
+                    continue;
                 }
+
+                // Does the representation of Q induce P?
+                Mapping mapping = mappingFromRepresentations(thm, entry.repQ, repP);
+                if (mapping != null && considerTheoremPartialMapping(goal, thm, mapping))
+                    return;
             }
         }
     }
@@ -144,8 +189,10 @@ public class Prover extends Diagram {
 
         // Otherwise, it is a bit more complicated.
         // If the goal is already in the queue, we are allowed to update its money
-        if(queue.contains(goal))
+        if(goal.position != -1) {
             goal.money = Math.max(goal.money, money);
+            queue.update(goal);
+        }
         // If the goal is not in the queue, we set the goal's money, and add it to the queue
         else {
             goal.money = money;
@@ -172,44 +219,42 @@ public class Prover extends Diagram {
         if (rep.data.get(1).equals(session.False)) {
             Morphism negP = rep.data.get(0);
             for (Representation repNegP : target.getRepresentations(negP)) {
-                for (Theorem thm : session.getTheorems()) {
-                    for (Morphism Q : thm.getConditions()) {
-                        List<Representation> repsQ = thm.getRepresentations(Q);
-                        for (Representation repQ : repsQ) {
-                            Mapping mapping = mappingFromRepresentations(thm, repQ, repNegP);
-                            if (mapping == null)
-                                continue;
-
-                            // Search for possible mappings, and consider them all
-                            List<Mapping> mappings = new ArrayList<>();
-                            Searcher searcher = new Searcher(mapping);
-                            searcher.setCheckpoint(checkpoint);
-                            searcher.search(mappings);
-                            for (Mapping m : mappings) {
-                                if (!m.valid()) // TODO: this should not happen, but apparently something is wrong with the Searcher?
-                                    continue;
-
-                                // For each conclusion R of thm, we have implications:
-                                // ~R & (thm.conditions - Q) => ~Q (which is P)
-                                for (Morphism R : thm.getConclusions()) {
-                                    try {
-                                        // Construct conditions
-                                        List<Morphism> conditions = new ArrayList<>(thm.getConditions());
-                                        conditions.remove(Q);
-                                        conditions = m.map(conditions);
-                                        conditions.add(thm.morphism(Representation.hom(m.map(R), session.False)));
-
-                                        // Create implication
-                                        StringJoiner sj = new StringJoiner("], [expr:", "[expr:", "]");
-                                        for (Morphism f : m.map(thm.data))
-                                            sj.add(session.str(f));
-                                        String message = "From the negation of [thm:" + thm.name + "] applied to " + sj.toString() + " follows that [expr:" + session.str(goal.P) + "]";
-                                        if (createImplication(goal, conditions, message))
-                                            return true;
-                                    } catch (CreationException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
+                // Only the conditions that can possibly match
+                for (TheoremIndex.Entry entry : session.getConditionIndex().candidates(repNegP, negP)) {
+                    Theorem thm = entry.theorem;
+                    Morphism Q = entry.Q;
+                    Mapping mapping = mappingFromRepresentations(thm, entry.repQ, repNegP);
+                    if (mapping == null)
+                        continue;
+
+                    // Search for possible mappings, and consider them all
+                    List<Mapping> mappings = new ArrayList<>();
+                    Searcher searcher = new Searcher(mapping);
+                    searcher.setCheckpoint(checkpoint);
+                    searcher.search(mappings);
+                    for (Mapping m : mappings) {
+                        if (!m.valid()) // TODO: this should not happen, but apparently something is wrong with the Searcher?
+                            continue;
+
+                        // For each conclusion R of thm, we have implications:
+                        // ~R & (thm.conditions - Q) => ~Q (which is P)
+                        for (Morphism R : thm.getConclusions()) {
+                            try {
+                                // Construct conditions
+                                List<Morphism> conditions = new ArrayList<>(thm.getConditions());
+                                conditions.remove(Q);
+                                conditions = m.map(conditions);
+                                conditions.add(thm.morphism(Representation.hom(m.map(R), session.False)));
+
+                                // Create implication
+                                StringJoiner sj = new StringJoiner("], [expr:", "[expr:", "]");
+                                for (Morphism f : m.map(thm.data))
+                                    sj.add(session.str(f));
+                                String message = "From the negation of [thm:" + thm.name + "] applied to " + sj.toString() + " follows that [expr:" + session.str(goal.P) + "]";
+                                if (createImplication(goal, conditions, message))
+                                    return true;
+                            } catch (CreationException e) {
+                                e.printStackTrace();
                             }
                         }
                     }
@@ -220,18 +265,34 @@ public class Prover extends Diagram {
     }
 
     private boolean considerTheoremPartialMapping(Goal goal, Theorem thm, Mapping mapping) {
+        // If this was done before, and nothing was identified or created since, only the implications that were found need to be created again
+        // (the lemma cache forgets everything as soon as anything is identified or created)
+        LemmaCache lemmas = session.getLemmaCache();
+        List<LemmaCache.Application> known = lemmas.getApplications(thm, mapping, checkpoint);
+        if (known != null) {
+            for (LemmaCache.Application application : known)
+                if (createImplication(goal, new ArrayList<>(application.conditions), application.message))
+                    return true;
+            return false;
+        }
+
         // Search for possible mappings, and consider them all
+        int version = session.getVersion();
+        List<LemmaCache.Application> applications = new ArrayList<>();
         List<Mapping> mappings = new ArrayList<>();
         Searcher searcher = new Searcher(mapping);
         searcher.setCheckpoint(checkpoint);
         searcher.search(mappings);
         for (Mapping m : mappings)
-            if (considerTheorem(goal, thm, m))
+            if (considerTheorem(goal, thm, m, applications))
                 return true;
+
+        if (session.getVersion() == version)
+            lemmas.putApplications(thm, mapping, checkpoint, applications);
         return false;
     }
 
-    private boolean considerTheorem(Goal goal, Theorem thm, Mapping mapping) {
+    private boolean considerTheorem(Goal goal, Theorem thm, Mapping mapping, List<LemmaCache.Application> applications) {
         if (!mapping.valid())
             return false;
 
@@ -259,6 +320,7 @@ public class Prover extends Diagram {
         }
 
         // Otherwise, create Implication
+        applications.add(new LemmaCache.Application(result, message));
         return createImplication(goal, result, message);
     }
 
@@ -318,10 +380,14 @@ public class Prover extends Diagram {
         private boolean considered;
         private final List<Implication> implications;
 
+        private int position; // Position in the queue, or -1 if it is not in the queue
+        private long order; // When it was (last) added to the queue
+
         Goal(Morphism P, int money) {
             this.P = P;
             this.money = money;
             considered = false;
+            position = -1;
             implications = new ArrayList<>();
         }
 
@@ -331,6 +397,92 @@ public class Prover extends Diagram {
 
     }
 
+    private class Agenda {
+
+        // Queue of goals as a binary heap: goals with the most money come first, and otherwise the goal that was added first.
+        // Every goal knows its position in the heap, so that it can be moved when its money changes
+        private Goal[] heap = new Goal[16];
+        private int size = 0;
+        private long counter = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(Goal goal) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, 2 * size);
+            goal.order = counter++;
+            heap[size] = goal;
+            goal.position = size++;
+            up(goal.position);
+        }
+
+        Goal poll() {
+            if (size == 0)
+                return null;
+            Goal goal = heap[0];
+            heap[0] = heap[--size];
+            heap[0].position = 0;
+            heap[size] = null;
+            goal.position = -1;
+            if (size > 0)
+                down(0);
+            return goal;
+        }
+
+        void update(Goal goal) {
+            // The money of the goal has changed
+            up(goal.position);
+            down(goal.position);
+        }
+
+        void clear() {
+            for (int i = 0; i < size; ++i) {
+                heap[i].position = -1;
+                heap[i] = null;
+            }
+            size = 0;
+        }
+
+        private boolean before(Goal a, Goal b) {
+            return a.money != b.money ? a.money > b.money : a.order < b.order;
+        }
+
+        private void up(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(heap[i], heap[parent]))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void down(int i) {
+            while (true) {
+                int first = i, left = 2 * i + 1, right = left + 1;
+                if (left < size && before(heap[left], heap[first]))
+                    first = left;
+                if (right < size && before(heap[right], heap[first]))
+                    first = right;
+                if (first == i)
+                    break;
+                swap(i, first);
+                i = first;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Goal goal = heap[i];
+            heap[i] = heap[j];
+            heap[j] = goal;
+            heap[i].position = i;
+            heap[j].position = j;
+        }
+
+    }
+
     private class Implication {
 
         private final Goal goal;
@@ -345,7 +497,7 @@ public class Prover extends Diagram {
 
         boolean update(Morphism P, Morphism Q, List<MorphismPair> induced) {
             // Replace conditions if necessary
-            conditions.replaceAll(R -> (R.index == P.index ? new Morphism(Q.index, R.k) : R));
+            conditions.replaceAll(R -> R.replace(P, Q));
             // Remove all true conditions
             conditions.removeIf(R -> R.equals(session.True));
 
@@ -378,7 +530,7 @@ public class Prover extends Diagram {
             Goal goal = entry.getValue();
             if (goal.P.index == f.index) {
                 goals.remove(goal.P);
-                goal.P = new Morphism(g.index, goal.P.k);
+                goal.P = goal.P.replace(f, g);
 
                 // It makes no sense to put True or False back in the map
                 if (!g.equals(session.True) && !g.equals(session.False))
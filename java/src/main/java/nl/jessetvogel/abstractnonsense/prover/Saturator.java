@@ -0,0 +1,350 @@
+package nl.jessetvogel.abstractnonsense.prover;
+
+import nl.jessetvogel.abstractnonsense.core.*;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+public class Saturator {
+
+    // Forward chaining: apply all theorems to all given diagrams, until nothing changes anymore.
+    // Every match of a theorem whose conditions are not all satisfied yet is kept as an activation, which waits for its conditions
+    // to be identified with True. The activations are indexed by their conditions, so an identification only visits the activations
+    // that wait for that morphism, and fires their conclusions once they are complete
+    private final Session session;
+    private final List<String> log;
+
+    // All replacements made since the start, so that matching only has to consider what changed since the last time (semi-naive evaluation)
+    private final List<Replacement> replacements;
+
+    public Saturator(Session session) {
+        this.session = session;
+        log = new ArrayList<>();
+        replacements = new ArrayList<>();
+    }
+
+    public List<String> getLog() {
+        return new ArrayList<>(log);
+    }
+
+    public void saturate(List<Diagram> diagrams, int rounds) {
+        List<Watcher> watchers = new ArrayList<>();
+        for (Diagram diagram : diagrams)
+            watchers.add(new Watcher(diagram));
+        Consumer<Replacement> listener = replacements::add;
+        session.addListener(listener);
+
+        // Every round, match all theorems that might have new matches, as something changed since they were last matched
+        for (int round = 0; round < rounds; ++round) {
+            boolean matched = false;
+            for (Watcher watcher : watchers) {
+                for (Theorem thm : new ArrayList<>(session.getTheorems())) {
+                    if (match(watcher, thm))
+                        matched = true;
+                    if (session.contradiction())
+                        break;
+                }
+            }
+            if (!matched || session.contradiction())
+                break;
+        }
+
+        session.removeListener(listener);
+        for (Watcher watcher : watchers)
+            watcher.detach();
+    }
+
+    private boolean match(Watcher watcher, Theorem thm) {
+        // Nothing to do if nothing was replaced or created since the last time
+        int[] stamp = { session.checkpoint(), replacements.size() };
+        int[] previous = watcher.stamps.put(thm, stamp);
+        if (Arrays.equals(stamp, previous))
+            return false;
+
+        List<Mapping> mappings = new ArrayList<>();
+        if (previous == null) {
+            Searcher searcher = new Searcher(thm, watcher.target);
+            searcher.setCheckpoint(stamp[0]);
+            searcher.search(mappings);
+        } else {
+            // Any new match must map some datum of the theorem onto a morphism that was created since the last time, or it must depend on
+            // a replacement, in which case it maps a datum onto the new morphism, or a representation onto a representation that changed.
+            // Only the partial matches that start from there have to be searched
+            Diagram target = watcher.target;
+            Set<Key> seeds = new HashSet<>();
+            Set<Morphism> touched = new LinkedHashSet<>();
+            Map<Representation, Morphism> changed = new LinkedHashMap<>();
+            for (int index = previous[0]; index < stamp[0]; ++index)
+                addKnown(target, session.morphismFromIndex(index), touched);
+            for (Replacement replacement : replacements.subList(previous[1], stamp[1]))
+                addReplacement(target, replacement, touched, changed);
+
+            for (Morphism y : touched) {
+                for (Morphism x : thm.data) {
+                    Mapping mapping = new Mapping(thm, target);
+                    Morphism z = session.morphismFromIndex(y.index, x.k); // Possibly an identity of y
+                    if (z != null && mapping.set(x, z) && seeds.add(new Key(mapping.toArray())))
+                        search(mapping, stamp[0], mappings);
+                }
+            }
+            for (Map.Entry<Representation, Morphism> changedEntry : changed.entrySet()) {
+                Representation repY = changedEntry.getKey();
+                Morphism y = changedEntry.getValue();
+                for (Map.Entry<Representation, Morphism> entry : thm.representations.entrySet()) {
+                    Representation repX = entry.getKey();
+                    if (repX.type != repY.type || repX.property != repY.property || repX.data.size() != repY.data.size())
+                        continue;
+                    Mapping mapping = new Mapping(thm, target);
+                    boolean consistent = mapping.set(entry.getValue(), y);
+                    for (int i = 0; consistent && i < repX.data.size(); ++i)
+                        consistent = mapping.set(repX.data.get(i), repY.data.get(i));
+                    if (consistent && seeds.add(new Key(mapping.toArray())))
+                        search(mapping, stamp[0], mappings);
+                }
+            }
+        }
+
+        for (Mapping m : mappings) {
+            // Matches that do not involve the target itself are found when matching against its parent
+            if (watcher.target.hasParent() && !watcher.target.ownsAny(m.map(thm.data)))
+                continue;
+            if (!m.valid() || !watcher.record(thm, new Key(m.toArray())))
+                continue;
+
+            // Construct message before applying theorem, as otherwise str(P) might evaluate to True
+            StringJoiner sj = new StringJoiner(", ");
+            for (Morphism f : m.map(thm.data))
+                sj.add("[expr:" + session.str(f) + "]");
+            String message = "[thm:" + thm.name + "] applied to " + sj.toString();
+            List<Morphism> conclusions = m.map(thm.getConclusions());
+
+            // Only applications that conclude something new are logged, and kept for later
+            boolean concludes = concludesNew(conclusions, null, null);
+            List<Morphism> conditions = thm.apply(m);
+            if (!concludes || conditions == null || conditions.contains(session.False))
+                continue;
+            if (conditions.isEmpty())
+                log.add(message);
+            else
+                watcher.add(new Activation(conditions, conclusions, message));
+        }
+        return true;
+    }
+
+    private boolean concludesNew(List<Morphism> conclusions, Morphism f, Morphism g) {
+        // Whether some conclusion is not True yet. The conclusions might be outdated, so look up what they were identified with
+        // (and while f is being replaced by g, which is not in the identifications yet, replace f as well)
+        for (Morphism Q : conclusions) {
+            if (Q == null)
+                continue;
+            Morphism R = session.resolve(Q);
+            if (f != null)
+                R = R.replace(f, g);
+            if (!R.equals(session.True))
+                return true;
+        }
+        return false;
+    }
+
+    private void search(Mapping mapping, int checkpoint, List<Mapping> mappings) {
+        Searcher searcher = new Searcher(mapping);
+        searcher.setCheckpoint(checkpoint);
+        searcher.search(mappings);
+    }
+
+    private void addReplacement(Diagram target, Replacement replacement, Set<Morphism> touched, Map<Representation, Morphism> changed) {
+        // The morphism that replaced the other, and the representations that changed, as far as they are known to the target.
+        // True and False are represented by almost every proposition, those representations did not change, so leave them out
+        Morphism g = session.morphismFromIndex(replacement.to);
+        if (g != null && target.knows(g) && !g.equals(session.True) && !g.equals(session.False)) {
+            touched.add(g);
+            for (Representation rep : target.getRepresentations(g))
+                changed.put(rep, g);
+        }
+        for (Representation rep : replacement.representations) {
+            if (!rep.data.stream().allMatch(target::knows))
+                continue;
+            try {
+                Morphism y = target.lookup(rep);
+                if (y != null)
+                    changed.put(rep, y);
+            } catch (CreationException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    private void addKnown(Diagram target, Morphism y, Set<Morphism> set) {
+        // Morphisms that are replaced by now, or that are unknown to the target, cannot be matched anyway
+        if (y != null && target.knows(y))
+            set.add(y);
+    }
+
+    private class Watcher extends Diagram {
+
+        // Child diagram of the target, so that it is told about all identifications that concern the target
+        private final Diagram target;
+        private final Map<Theorem, int[]> stamps;
+        private final Map<Theorem, Set<Key>> matches;
+        private final Map<Integer, List<Applied>> applied; // The matches by the indices they map to
+        private final Map<Integer, List<Activation>> activations; // By the index of their (unsatisfied) conditions
+
+        Watcher(Diagram target) {
+            super(Saturator.this.session, target, "saturator");
+            this.target = target;
+            stamps = new HashMap<>();
+            matches = new HashMap<>();
+            applied = new HashMap<>();
+            activations = new HashMap<>();
+        }
+
+        boolean record(Theorem thm, Key key) {
+            // Returns false if the match was recorded already
+            if (!matches.computeIfAbsent(thm, t -> new HashSet<>()).add(key))
+                return false;
+            Applied match = new Applied(thm, key);
+            for (int index : key.indices())
+                applied.computeIfAbsent(index, i -> new ArrayList<>()).add(match);
+            return true;
+        }
+
+        void add(Activation activation) {
+            for (Morphism P : activation.conditions)
+                activations.computeIfAbsent(P.index, i -> new ArrayList<>()).add(activation);
+        }
+
+        @Override
+        protected void replaceMorphism(Morphism f, Morphism g, List<MorphismPair> induced) throws CreationException {
+            super.replaceMorphism(f, g, induced);
+
+            // Matches that were already applied stay applied, also in terms of the new index. Only the matches that map to f change.
+            // First remove all their keys, then add the new ones, as a new key might equal an old key of another match.
+            // If a new key was recorded already, the match is a duplicate and is dropped (it stays in the lists of its other indices until those change)
+            List<Applied> changed = applied.remove(f.index);
+            if (changed != null) {
+                for (Applied match : changed) {
+                    if (!match.dropped)
+                        matches.get(match.theorem).remove(match.key);
+                }
+                for (Applied match : changed) {
+                    if (match.dropped)
+                        continue;
+                    boolean moved = !match.key.contains(g.index);
+                    match.key = match.key.replace(f.index, g.index);
+                    if (!matches.get(match.theorem).add(match.key))
+                        match.dropped = true;
+                    else if (moved)
+                        applied.computeIfAbsent(g.index, i -> new ArrayList<>()).add(match);
+                }
+            }
+
+            List<Activation> list = activations.remove(f.index);
+            if (list == null)
+                return;
+            for (Activation activation : list) {
+                if (activation.done)
+                    continue;
+                activation.conditions.replaceAll(P -> P.replace(f, g));
+                activation.conditions.removeIf(P -> P.equals(session.True));
+
+                // If a condition is false, the activation will never fire
+                if (activation.conditions.contains(session.False)) {
+                    activation.done = true;
+                    continue;
+                }
+
+                // If all conditions are satisfied, apply the conclusions
+                if (activation.conditions.isEmpty()) {
+                    activation.done = true;
+                    if (!concludesNew(activation.conclusions, f, g))
+                        continue;
+                    log.add(activation.message);
+                    for (Morphism Q : activation.conclusions)
+                        induced.add(new MorphismPair(Q, session.True));
+                    continue;
+                }
+
+                if (!g.equals(session.True))
+                    activations.computeIfAbsent(g.index, i -> new ArrayList<>()).add(activation);
+            }
+        }
+    }
+
+    private static class Applied {
+
+        private final Theorem theorem;
+        private Key key; // Changed in place (the sets of keys are changed in place as well, as they might be in use by match)
+        private boolean dropped;
+
+        Applied(Theorem theorem, Key key) {
+            this.theorem = theorem;
+            this.key = key;
+            dropped = false;
+        }
+    }
+
+    private static class Activation {
+
+        private final List<Morphism> conditions;
+        private final List<Morphism> conclusions; // Might be outdated, but Session.identify looks them up anyway
+        private final String message;
+        private boolean done;
+
+        Activation(List<Morphism> conditions, List<Morphism> conclusions, String message) {
+            this.conditions = conditions;
+            this.conclusions = conclusions;
+            this.message = message;
+            done = false;
+        }
+    }
+
+    private static class Key {
+
+        private final int[] values;
+
+        Key(int[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof Key) && Arrays.equals(values, ((Key) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+
+        boolean contains(int i) {
+            for (int value : values) {
+                if (value == i)
+                    return true;
+            }
+            return false;
+        }
+
+        Set<Integer> indices() {
+            // Unmapped entries are -1
+            Set<Integer> indices = new HashSet<>();
+            for (int value : values) {
+                if (value >= 0)
+                    indices.add(value);
+            }
+            return indices;
+        }
+
+        Key replace(int i, int j) {
+            int[] replaced = null;
+            for (int n = 0; n < values.length; ++n) {
+                if (values[n] != i)
+                    continue;
+                if (replaced == null)
+                    replaced = values.clone();
+                replaced[n] = j;
+            }
+            return (replaced != null) ? new Key(replaced) : this;
+        }
+    }
+
+}
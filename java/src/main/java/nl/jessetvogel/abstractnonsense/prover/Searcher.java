@@ -3,22 +3,58 @@ package nl.jessetvogel.abstractnonsense.prover;
 import nl.jessetvogel.abstractnonsense.core.*;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class Searcher extends Mapping {
 
+    private static final int MAX_SPLIT_DEPTH = 8;
+
     private int checkpoint = Integer.MAX_VALUE;
 
-    // TODO: maybe it is unnecessary to explicitly keep track of 'depth' just keep a stack and work on the last layer, so to say
-    private List<Integer> recentlyMapped;
+    // A branch of a parallel search (see ParallelSearch) only looks up morphisms in the target, it never creates any
+    private boolean lookupOnly = false;
+
+    // While checking candidates ahead (see consistent), representations are only looked up, so that nothing is created for candidates
+    // that are never chosen. A representation that does not exist yet then simply does not rule out the candidate
+    private boolean probing = false;
+    private ParallelSearch parallelSearch = null;
+    private int branch;
+    private SearchPlan plan = null;
+
+    // Indices that were put in the mapping, in order, so that they can be removed again when backtracking
+    private int[] trail;
+    private int trailSize;
+
+    // For the morphisms in the queue, the candidates that are still consistent with the current mapping.
+    // Whenever these are changed, the old candidates are pushed on a stack, so that they can be restored when backtracking
+    private final Map<Integer, long[]> domains;
+    private final List<Domain> domainTrail;
 
     public Searcher(Context context, Diagram target) {
         super(context, target);
-        recentlyMapped = null;
+        trail = new int[16];
+        trailSize = 0;
+        domains = new HashMap<>();
+        domainTrail = new ArrayList<>();
     }
 
     public Searcher(Mapping mapping) {
         super(mapping);
-        recentlyMapped = null;
+        trail = new int[16];
+        trailSize = 0;
+        domains = new HashMap<>();
+        domainTrail = new ArrayList<>();
+    }
+
+    private Searcher(Searcher searcher, SearchPlan plan) {
+        // Copy of the current state, used as the starting point of a branch
+        super(searcher);
+        this.plan = plan;
+        checkpoint = searcher.checkpoint;
+        trail = new int[16];
+        trailSize = 0;
+        domains = new HashMap<>(searcher.domains);
+        domainTrail = new ArrayList<>();
     }
 
     public void setCheckpoint(int checkpoint) {
@@ -33,131 +69,311 @@ public class Searcher extends Mapping {
         // Setup search plan
         SearchPlan plan = new SearchPlan();
 
-        // Find mappings
-        find(plan, mappings, 0, limit);
+        // Representations of which the data is already determined can be induced right away
+        int mark = trailSize, domainMark = domainTrail.size();
+        if(induceDetermined(plan))
+            find(plan, mappings, limit); // Find mappings
+        undo(mark, domainMark);
+    }
+
+    List<Searcher> split() {
+        // Split the top levels of the search into branches, each of which is a copy of this searcher at some node in the search tree.
+        // Going deeper until there are enough branches to keep all threads busy
+        SearchPlan plan = new SearchPlan();
+        List<Searcher> leaves = new ArrayList<>();
+
+        // Only consider morphisms that exist now, so that what a branch finds does not depend on what other branches create
+        int oldCheckpoint = checkpoint;
+        checkpoint = Math.min(checkpoint, session.checkpoint());
+
+        int mark = trailSize, domainMark = domainTrail.size();
+        if(induceDetermined(plan)) {
+            int target = 4 * ForkJoinPool.getCommonPoolParallelism(); // Magic number!
+            int depth = 0;
+            boolean deeper;
+            do {
+                leaves.clear();
+                deeper = split(plan, ++depth, leaves);
+            } while(deeper && leaves.size() < target && depth < MAX_SPLIT_DEPTH);
+        }
+        undo(mark, domainMark);
+
+        checkpoint = oldCheckpoint;
+        return leaves;
+    }
+
+    private boolean split(SearchPlan plan, int depth, List<Searcher> leaves) {
+        // Same as find, but after 'depth' levels store a copy of the current state as a branch.
+        // Returns true if some branch was cut off at that depth
+        Morphism f = select(plan);
+        if(depth == 0 || f == null) {
+            leaves.add(new Searcher(this, plan));
+            return f != null;
+        }
+
+        boolean deeper = false;
+        for(long g : domains.get(f.index)) {
+            int mark = trailSize, domainMark = domainTrail.size();
+            if(set(f.pack(), g) && induce(plan, mark) && forwardCheck(plan, mark))
+                deeper |= split(plan, depth - 1, leaves);
+            undo(mark, domainMark);
+        }
+        return deeper;
+    }
+
+    boolean findBranch(ParallelSearch search, int branch, List<Mapping> results, int limit) {
+        // Search this branch without creating anything. Returns false if that was not possible
+        // (also if anything else would have modified the session, such as asking for the category of the highest n-category)
+        parallelSearch = search;
+        this.branch = branch;
+        lookupOnly = true;
+        try {
+            find(plan, results, limit);
+            return true;
+        } catch (Incomplete | Session.FrozenException e) {
+            // Restore the state, so that the branch can be searched again
+            undo(0, 0);
+            results.clear();
+            return false;
+        } finally {
+            parallelSearch = null;
+            lookupOnly = false;
+        }
+    }
+
+    void findSequential(List<Mapping> mappings, int limit) {
+        find(plan, mappings, limit);
     }
 
-    private void find(SearchPlan plan, List<Mapping> mappings, int depth, int limit) {
-        // If we already found 'limit' examples, stop searching
-        if(mappings.size() >= limit)
+    private void find(SearchPlan plan, List<Mapping> mappings, int limit) {
+        // If we already found 'limit' examples, or the branches before this one did, stop searching
+        if(mappings.size() >= limit || (parallelSearch != null && parallelSearch.cutoff(branch)))
             return;
 
         // If the whole queue is mapped, the mapping should be complete, and we store it!
-        if(depth >= plan.queue.size()) {
+        Morphism f = select(plan);
+        if(f == null) {
             mappings.add(new Mapping(this));
             return;
         }
 
-        // Get morphism from the queue, if it is already determined, we can skip this step
-        Morphism f = plan.queue.get(depth);
-        if(determined(f)) {
-            find(plan, mappings, depth + 1, limit);
-            System.err.println("Weird, but okay..");
-            return;
-        }
-
-        // TODO: maybe these were already found!
-        List<Morphism> candidates = findCandidates(target, f);
-        if(candidates.isEmpty())
-            return;
+        for(long g : domains.get(f.index)) {
+            // Try mapping, and only continue if the induced representations and the candidates of the other morphisms allow it
+            int mark = trailSize, domainMark = domainTrail.size();
+            if(set(f.pack(), g) && induce(plan, mark) && forwardCheck(plan, mark))
+                find(plan, mappings, limit);
+            undo(mark, domainMark);
 
-        List<Integer> mapped = new ArrayList<>();
-        for(Morphism g : candidates) {
-            // Set list and try mapping
-            recentlyMapped = mapped;
-            if(set(f, g) && setInduced(plan.induced.get(depth)))
-                find(plan, mappings, depth + 1, limit);
+            if(mappings.size() >= limit)
+                return;
+        }
+    }
 
-            // Unset and clear list
-            unset(mapped);
-            mapped.clear();
-            recentlyMapped = null;
+    private Morphism select(SearchPlan plan) {
+        // Pick the next morphism from the queue, among those of which the category, domain and codomain are determined.
+        // A morphism with no consistent candidates (a dead end) or only one (which does not branch) goes first, otherwise the first one in the queue.
+        // That way the mappings are found in the same order as when going through the queue in order, which matters when the number of results is limited.
+        // Since the queue is ordered by dependency, there is always such a morphism, unless everything is mapped
+        Morphism f = null;
+        for(Morphism x : plan.queue) {
+            if(determined(x) || !ready(x))
+                continue;
+            int n = domain(plan, x).length;
+            if(n <= 1)
+                return x;
+            if(f == null)
+                f = x;
         }
+        return f;
     }
 
     @Override
     protected void put(int i, int j) {
-        mapping.put(i, j);
+        super.put(i, j);
 
         // Remember what index was put, so it can be undone later
-        if(recentlyMapped != null)
-            recentlyMapped.add(i);
+        if(trailSize == trail.length)
+            trail = Arrays.copyOf(trail, 2 * trailSize);
+        trail[trailSize++] = i;
     }
 
-    private boolean setInduced(List<Representation> reps) {
-        for(Representation rep : reps) {
-            // TODO: this should not be necessary!
-            if (!determinedAll(rep.data)) {
-                System.err.println("The whole idea was that this works..");
-                continue;
+    private void undo(int mark) {
+        // Remove all mappings that were put since the mark
+        while(trailSize > mark)
+            remove(trail[--trailSize]);
+    }
+
+    private void undo(int mark, int domainMark) {
+        undo(mark);
+
+        // Restore the candidates as they were at the mark
+        while(domainTrail.size() > domainMark) {
+            Domain d = domainTrail.remove(domainTrail.size() - 1);
+            if(d.candidates == null)
+                domains.remove(d.index);
+            else
+                domains.put(d.index, d.candidates);
+        }
+    }
+
+    private boolean ready(Morphism f) {
+        // Candidates can only be found once category, domain and codomain are mapped
+        if(!determined(session.cat(f)))
+            return false;
+        return f.k == 0 || (determined(session.dom(f)) && determined(session.cod(f)));
+    }
+
+    private long[] domain(SearchPlan plan, Morphism f) {
+        long[] domain = domains.get(f.index);
+        if(domain == null) {
+            domain = consistent(plan, f.pack(), findCandidates(target, f.pack()));
+            setDomain(f.index, domain);
+        }
+        return domain;
+    }
+
+    private void setDomain(int index, long[] candidates) {
+        domainTrail.add(new Domain(index, domains.put(index, candidates)));
+    }
+
+    private long[] consistent(SearchPlan plan, long f, long[] candidates) {
+        // Filter the candidates that are not immediately contradicted by the representations they would induce
+        long[] list = new long[candidates.length];
+        int n = 0;
+        boolean wasProbing = probing;
+        probing = true;
+        try {
+            for(long g : candidates) {
+                int mark = trailSize;
+                if(set(f, g) && induce(plan, mark))
+                    list[n++] = g;
+                undo(mark);
             }
+        } finally {
+            probing = wasProbing;
+        }
+        return (n == candidates.length) ? candidates : Arrays.copyOf(list, n);
+    }
 
-            Morphism f = context.representations.get(rep);
-            Morphism g;
-            try {
-                g = target.morphism(rep.map(this));
-            } catch (CreationException e) {
-                System.err.println(e.getMessage());
-                continue;
+    private boolean forwardCheck(SearchPlan plan, int mark) {
+        // Restrict the candidates of the morphisms that share a representation with something that was mapped since the mark
+        Set<Integer> checked = new HashSet<>();
+        int end = trailSize;
+        for(int i = mark; i < end; ++i) {
+            for(Representation rep : plan.representations(trail[i])) {
+                for(Morphism y : rep.data) {
+                    if(determined(y) || !checked.add(y.index))
+                        continue;
+                    long[] domain = domains.get(y.index);
+                    if(domain == null)
+                        continue;
+                    long[] restricted = consistent(plan, y.pack(), domain);
+                    if(restricted.length == 0)
+                        return false;
+                    if(restricted != domain)
+                        setDomain(y.index, restricted);
+                }
             }
+        }
+        return true;
+    }
 
-            if (!set(f, g))
+    private boolean induceDetermined(SearchPlan plan) {
+        int mark = trailSize;
+        for(Representation rep : context.representations.keySet()) {
+            if(determinedAll(rep.data) && !induce(rep))
                 return false;
         }
-        return true;
+        return induce(plan, mark);
     }
 
-    private void unset(List<Integer> indices) {
-        // Remove all mappings from the last layer, and delete the layer
-        for(int index : indices)
-            mapping.remove(index);
+    private boolean induce(SearchPlan plan, int mark) {
+        // Induce the representations of which the data became determined by what was mapped since the mark
+        // (note that this may map more, which is then handled as well)
+        for(int i = mark; i < trailSize; ++i) {
+            for(Representation rep : plan.representations(trail[i])) {
+                if(determinedAll(rep.data) && !induce(rep))
+                    return false;
+            }
+        }
+        return true;
     }
 
-    private List<Morphism> findCandidates(Diagram diagram, Morphism f) {
-        List<Morphism> list = new ArrayList<>();
+    private boolean induce(Representation rep) {
+        Morphism f = context.representations.get(rep);
+        Morphism g;
+        try {
+            g = (lookupOnly || probing) ? target.lookup(rep.map(this)) : target.morphism(rep.map(this));
+        } catch (CreationException e) {
+            System.err.println(e.getMessage());
+            return true;
+        }
+        if(g == null && probing)
+            return true;
+        if(g == null)
+            throw new Incomplete();
+        return set(f, g);
+    }
 
+    private long[] findCandidates(Diagram diagram, long f) {
         // These should be well-mapped at this point
-        Morphism cat = map(session.cat(f));
-        Morphism dom = map(session.dom(f));
-        Morphism cod = map(session.cod(f));
+        long cat = map(session.cat(f));
+        long dom = map(session.dom(f));
+        long cod = map(session.cod(f));
 
         // Special case of Prop, there are only two options
-        if(cat.equals(session.Prop)) {
-            list.add(session.True);
-            list.add(session.False);
-            return list;
-        }
+        if(cat == session.Prop.pack())
+            return new long[] { session.True.pack(), session.False.pack() };
 
-        // Find morphisms in target whose cat, dom, cod are what we are looking for
-        for(int index : diagram.indices) {
-            if(index > checkpoint) // Skip all morphisms that were created past the checkpoint
-                continue;
+        return findCandidates(diagram, Morphism.k(f), cat, dom, cod);
+    }
 
-            Morphism g = session.morphismFromIndex(index, f.k);
-            if(g == null || !session.cat(g).equals(cat) || !session.dom(g).equals(dom) || !session.cod(g).equals(cod))
-                continue;
+    private long[] findCandidates(Diagram diagram, int k, long cat, long dom, long cod) {
+        // Find morphisms in target whose cat, dom, cod are what we are looking for (this is a single lookup)
+        int[] indices = diagram.getIndices(Morphism.index(cat), k, Morphism.index(dom), Morphism.index(cod), checkpoint);
+
+        // Apart from those, an identity morphism of (a lower morphism) dom = cod might do as well
+        int identity = -1;
+        if(k > 0 && dom == cod && Morphism.k(dom) == k - 1) {
+            int index = Morphism.index(dom);
+            long g = Morphism.pack(index, k);
+            if(index <= checkpoint && diagram.owns(index) && session.isMorphism(g) && session.isIdentity(g) && session.cat(g) == cat)
+                identity = index;
+        }
 
-            list.add(g);
+        // Put the candidates in order of creation
+        long[] list = new long[indices.length + (identity != -1 ? 1 : 0)];
+        int n = 0;
+        for(int index : indices) {
+            if(identity != -1 && identity < index) {
+                list[n++] = Morphism.pack(identity, k);
+                identity = -1;
+            }
+            list[n++] = Morphism.pack(index, k);
         }
+        if(identity != -1)
+            list[n] = Morphism.pack(identity, k);
 
         // Find candidates in parent?
-        if(diagram.hasParent() && !diagram.owns(cat) && !diagram.owns(dom) && !diagram.owns(cod))
-            list.addAll(findCandidates(diagram.getParent(), f));
+        if(diagram.hasParent() && !diagram.owns(Morphism.index(cat)) && !diagram.owns(Morphism.index(dom)) && !diagram.owns(Morphism.index(cod))) {
+            long[] listParent = findCandidates(diagram.getParent(), k, cat, dom, cod);
+            int m = list.length;
+            list = Arrays.copyOf(list, m + listParent.length);
+            System.arraycopy(listParent, 0, list, m, listParent.length);
+        }
 
         return list;
     }
 
     private class SearchPlan {
 
-        // TODO: independence blocks, so that you can remember candidates! ?
-
         List<Morphism> queue;
-        List<List<Representation>> induced;
+        Map<Integer, List<Representation>> representations;
 
         SearchPlan() {
-            // Set queue and lists of induced mappings
+            // Set queue and, for every index, the representations that depend on it
             setQueue();
-            setInduced();
+            setRepresentations();
         }
 
         private void setQueue() {
@@ -179,45 +395,41 @@ public class Searcher extends Mapping {
             }
         }
 
-        private void setInduced() {
-            induced = new ArrayList<>();
-            Set<Integer> marked = new HashSet<>();
-
-            Set<Map.Entry<Representation, Morphism>> repsToInduce = new HashSet<>(context.representations.entrySet());
-
-            for(int depth = 0; depth < queue.size(); ++depth) {
-                // Add morphism (index) from queue to marked
-                marked.add(queue.get(depth).index);
-                List<Representation> list = new ArrayList<>();
-                boolean updates = true;
-                while(updates) {
-                    updates = false;
-                    for (Iterator<Map.Entry<Representation, Morphism>> it = repsToInduce.iterator(); it.hasNext(); ) {
-                        Map.Entry<Representation, Morphism> entry = it.next();
-                        Representation rep = entry.getKey();
-                        Morphism f = entry.getValue();
-
-                        // Can only be induced if all its data is marked
-                        if(!determinedOrMarked(marked, rep.data))
-                            continue;
-
-                        list.add(rep);
-                        marked.add(f.index);
-                        it.remove();
-                        updates = true;
-                    }
+        private void setRepresentations() {
+            representations = new HashMap<>();
+            for(Representation rep : context.representations.keySet()) {
+                for(Morphism x : rep.data) {
+                    if(context.owns(x))
+                        representations.computeIfAbsent(x.index, i -> new ArrayList<>()).add(rep);
                 }
-
-                induced.add(list);
             }
         }
 
-        private boolean determinedOrMarked(Set<Integer> marked, List<Morphism> morphisms) {
-            for(Morphism f : morphisms) {
-                if (!determined(f) && !marked.contains(f.index))
-                    return false;
-            }
-            return true;
+        List<Representation> representations(int index) {
+            return representations.getOrDefault(index, Collections.emptyList());
+        }
+
+    }
+
+    private static class Incomplete extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Incomplete() {
+            // Thrown when a branch would have to create a morphism, so no need for a stack trace
+            super(null, null, false, false);
+        }
+
+    }
+
+    private static class Domain {
+
+        final int index;
+        final long[] candidates;
+
+        Domain(int index, long[] candidates) {
+            this.index = index;
+            this.candidates = candidates;
         }
 
     }